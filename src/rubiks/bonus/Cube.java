@@ -53,6 +53,16 @@ public class Cube implements Serializable {
 
     public static final byte YELLOW = 5; // value for yellow element
 
+    // a byte repeated in each byte of a long
+    private static final long BYTES = 0x0101010101010101L;
+
+    // sides which stay single colored, or not, by any twist of each axis:
+    // the two sides the axis goes through are only rotated
+    private static final int[] KEPT_SIDES = {
+            (1 << TOP) | (1 << BOTTOM), // X
+            (1 << LEFT) | (1 << RIGHT), // Y
+            (1 << FRONT) | (1 << BACK) }; // Z
+
     private int size; // size of this cube
 
     /*
@@ -69,6 +79,10 @@ public class Cube implements Serializable {
 
     private int bound; // bound, useful for limiting the search depth
 
+    // twists done on the cube to solve to get this one. Only tracked for
+    // jobs, and only if solutions are printed
+    private int[] path;
+
     /**
      * Creates a "solved" cube of a given size
      * 
@@ -146,6 +160,7 @@ public class Cube implements Serializable {
         this.size = original.size;
         this.twists = original.twists;
         this.bound = original.bound;
+        this.path = original.path;
 
         // init data arrays
         data = new byte[SIDES][size * size];
@@ -262,6 +277,123 @@ public class Cube implements Serializable {
         this.bound = bound;
     }
 
+    /**
+     * Get the twists done on the original cube to get this one. Only tracked
+     * if set on the original cube with setPath().
+     * 
+     * @return the twists done, or null if not tracked
+     */
+    public int[] getPath() {
+        return path;
+    }
+
+    /**
+     * Set the twists done on the original cube to get this one. Children
+     * created with generateChildren() extend the path of their parent.
+     * 
+     * @param path
+     *            the twists done, or null to not track them
+     */
+    public void setPath(int[] path) {
+        this.path = path;
+    }
+
+    /**
+     * Returns the number of bytes written by pack() for a cube of a given
+     * size: the twists and bound, then two elements per byte. A cube has an
+     * even number of elements, as it has an even number of sides.
+     *
+     * @param size
+     *            size of the cube
+     * @return the number of bytes
+     */
+    public static int packedSize(int size) {
+        return 2 + SIDES * size * size / 2;
+    }
+
+    /**
+     * Write the twists, bound and elements of this cube to a buffer. A color
+     * fits in 4 bits, so each byte holds two elements. Twists and bound must
+     * be below 256. The path is not written.
+     *
+     * @param buffer
+     *            buffer to write to, packedSize() bytes from offset
+     * @param offset
+     *            position of the first byte
+     */
+    public void pack(byte[] buffer, int offset) {
+        buffer[offset++] = (byte) twists;
+        buffer[offset++] = (byte) bound;
+        // a side of odd length ends halfway a byte, the next side fills it
+        int element = 0;
+        int packed = 0;
+        for (byte[] side : data) {
+            for (byte color : side) {
+                if (element % 2 == 0) {
+                    packed = color;
+                } else {
+                    buffer[offset + element / 2] = (byte) (packed | color << 4);
+                }
+                element++;
+            }
+        }
+    }
+
+    /**
+     * Read the twists, bound and elements written by pack() into this cube.
+     * The cube must have the same size as the one packed.
+     *
+     * @param buffer
+     *            buffer to read from, packedSize() bytes from offset
+     * @param offset
+     *            position of the first byte
+     */
+    public void unpack(byte[] buffer, int offset) {
+        twists = buffer[offset++] & 0xff;
+        bound = buffer[offset++] & 0xff;
+        path = null;
+        int element = 0;
+        for (byte[] side : data) {
+            for (int i = 0; i < side.length; i++) {
+                int packed = buffer[offset + element / 2];
+                side[i] = (byte) (packed >> (element % 2 * 4) & 0xf);
+                element++;
+            }
+        }
+    }
+
+    /**
+     * Returns the color of an element of this cube.
+     *
+     * @param side
+     *            side of the element
+     * @param row
+     *            row of the element
+     * @param column
+     *            column of the element
+     * @return the color of the element
+     */
+    public byte getElement(int side, int row, int column) {
+        return data[side][element(row, column)];
+    }
+
+    /**
+     * Sets the color of an element of this cube. The cube is not checked for
+     * consistency afterwards.
+     *
+     * @param side
+     *            side of the element
+     * @param row
+     *            row of the element
+     * @param column
+     *            column of the element
+     * @param color
+     *            the new color of the element
+     */
+    public void setElement(int side, int row, int column, byte color) {
+        data[side][element(row, column)] = color;
+    }
+
     /**
      * Returns if this cube is solved or not.
      * 
@@ -269,17 +401,87 @@ public class Cube implements Serializable {
      */
     public boolean isSolved() {
         for (byte i = 0; i < SIDES; i++) {
-            // all elements must be the same color as first element
-            byte color = data[i][0];
-            for (int j = 1; j < size * size; j++) {
-                if (data[i][j] != color) {
-                    return false;
-                }
+            if (!uniform(data[i])) {
+                return false;
             }
         }
         return true;
     }
 
+    /**
+     * Returns which sides of this cube have a single color.
+     * 
+     * @return bit i is set if side i has a single color
+     */
+    public int uniformSides() {
+        int result = 0;
+        for (byte i = 0; i < SIDES; i++) {
+            if (uniform(data[i])) {
+                result |= 1 << i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sides which must have a single color before a twist for the
+     * twisted cube to be solved. A twist only rotates the two sides its axis
+     * goes through, so if one of those has more than one color, so has the
+     * twisted cube.
+     * 
+     * @param move
+     *            number of the twist
+     * @param size
+     *            size of the cube
+     * @return bit i is set if side i must have a single color
+     */
+    public static int keptSides(int move, int size) {
+        return KEPT_SIDES[move / (2 * (size - 1))];
+    }
+
+    /**
+     * Returns a 64-bit hash of the colors of this cube. Cubes with the same
+     * colors have the same hash, regardless of how they were twisted.
+     * 
+     * @return the hash of this cube
+     */
+    public long hash() {
+        long result = size;
+        for (int i = 0; i < SIDES; i++) {
+            for (int j = 0; j < size * size; j++) {
+                result = (result + data[i][j] + 1) * 0x9E3779B97F4A7C15L;
+            }
+        }
+        // mix the high bits into the low bits, which index the tables
+        return result ^ (result >>> 29) ^ (result >>> 47);
+    }
+
+    /**
+     * Cheap estimate of how far this cube is from being solved: the number of
+     * elements that differ from the most common color of their side.
+     *
+     * @return the number of misplaced elements, 0 if solved
+     */
+    public int misplaced() {
+        int[] counts = new int[SIDES];
+        int result = 0;
+
+        for (byte i = 0; i < SIDES; i++) {
+            for (int j = 0; j < SIDES; j++) {
+                counts[j] = 0;
+            }
+            int max = 0;
+            for (int j = 0; j < size * size; j++) {
+                int count = ++counts[data[i][j]];
+                if (count > max) {
+                    max = count;
+                }
+            }
+            result += (size * size) - max;
+        }
+        return result;
+    }
+
     /**
      * Twists this cube in each way possible.
      * 
@@ -300,9 +502,105 @@ public class Cube implements Serializable {
             }
         }
 
+        for (int move = 0; move < result.length; move++) {
+            result[move].path = extendPath(path, move);
+        }
+
         return result;
     }
 
+    /**
+     * Returns the number of possible twists of this cube. Twists are numbered
+     * from 0 in the same order as the children of generateChildren().
+     *
+     * @return the number of possible twists
+     */
+    public int getMoves() {
+        return 6 * (size - 1);
+    }
+
+    /**
+     * Returns the compact name of a twist, e.g. "Y2-" for a negative twist of
+     * the Y-axis starting at row 2.
+     *
+     * @param move
+     *            number of the twist
+     * @param size
+     *            size of the cube
+     * @return the name of the twist
+     */
+    public static String moveName(int move, int size) {
+        char axis = "XYZ".charAt(move / (2 * (size - 1)));
+        int row = (move >> 1) % (size - 1) + 1;
+        char direction = (move & 1) == 0 ? '+' : '-';
+
+        return "" + axis + row + direction;
+    }
+
+    /**
+     * Returns the compact notation of a sequence of twists.
+     *
+     * @param moves
+     *            numbers of the twists
+     * @param size
+     *            size of the cube
+     * @return the names of the twists, separated by spaces
+     */
+    public static String movesToString(int[] moves, int size) {
+        StringBuilder result = new StringBuilder();
+        for (int move : moves) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(moveName(move, size));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Extends a path with one twist.
+     *
+     * @param path
+     *            the path, may be null
+     * @param move
+     *            number of the twist
+     * @return a new path, or null if the path was null
+     */
+    public static int[] extendPath(int[] path, int move) {
+        if (path == null) {
+            return null;
+        }
+        int[] result = new int[path.length + 1];
+        System.arraycopy(path, 0, result, 0, path.length);
+        result[path.length] = move;
+        return result;
+    }
+
+    /**
+     * Twist this cube in place.
+     *
+     * @param move
+     *            number of the twist ( 0 <= move < getMoves() )
+     */
+    public void twist(int move) {
+        int row = (move >> 1) % (size - 1) + 1;
+        boolean direction = (move & 1) == 0;
+
+        switch (move / (2 * (size - 1))) {
+        case 0:
+            twistX(row, direction);
+            break;
+        case 1:
+            twistY(row, direction);
+            break;
+        case 2:
+            twistZ(row, direction);
+            break;
+        default:
+            throw new Error("unknown move: " + move);
+        }
+    }
+
     /**
      * Twist the cube, returning the result as a new cube.
      * 
@@ -399,6 +697,55 @@ public class Cube implements Serializable {
         return size - 1 - value;
     }
 
+    /**
+     * Returns if all elements of a side have the same color as the first
+     * element. Compares 8 elements at a time, the last (overlapping) 8
+     * elements are compared as a whole too.
+     * 
+     * @param side
+     *            elements of the side
+     * @return true if the side has a single color
+     */
+    private static boolean uniform(byte[] side) {
+        int length = side.length;
+        if (length < 8) {
+            for (int j = 1; j < length; j++) {
+                if (side[j] != side[0]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long color = (side[0] & 0xFFL) * BYTES;
+        for (int j = 0; j < length - 8; j += 8) {
+            if (longAt(side, j) != color) {
+                return false;
+            }
+        }
+        return longAt(side, length - 8) == color;
+    }
+
+    /**
+     * Reads 8 elements of a side at once, see uniform(). The order of the
+     * bytes does not matter, as they are only compared with a repeated byte.
+     * 
+     * @param side
+     *            elements of the side
+     * @param offset
+     *            index of the first element
+     * @return the 8 elements, one per byte
+     */
+    private static long longAt(byte[] side, int offset) {
+        return (side[offset] & 0xFFL) | (side[offset + 1] & 0xFFL) << 8
+                | (side[offset + 2] & 0xFFL) << 16
+                | (side[offset + 3] & 0xFFL) << 24
+                | (side[offset + 4] & 0xFFL) << 32
+                | (side[offset + 5] & 0xFFL) << 40
+                | (side[offset + 6] & 0xFFL) << 48
+                | (side[offset + 7] & 0xFFL) << 56;
+    }
+
     /**
      * Computes the position into the data array for each side from the row and
      * column
@@ -1,62 +1,165 @@
 package rubiks.bonus;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Cache for Cube objects. Using this cache instead of "new Cube()" for every
  * move is more efficient. Creating lots and lots of small objects continuously
  * overloads the garbage collector.
- * 
+ *
+ * This cache can be shared by all the threads of a node. Each thread gets and
+ * puts cubes in a magazine of its own without any synchronization. Full
+ * magazines are handed to a shared lock-free depot, and a thread with an empty
+ * magazine takes a full one from the depot, so cubes put by one thread are
+ * reused by the others.
+ *
+ * The hits and misses are counted per thread too, in the magazine, and only
+ * summed when asked for. Each magazine is created by its own thread and its
+ * counters are padded to a cache line on each side, so threads never write
+ * to the same cache line.
+ *
  * @author Niels Drost, Timo van Kessel
- * 
+ *
  */
 public class CubeCache {
 
     public static final int MAX_CACHE_SIZE = 10 * 1024;
-    
+
+    // number of cubes in a magazine
+    static final int MAGAZINE_SIZE = 64;
+
     private final int cubeSize;
 
-    private final Cube[] cache;
+    // full magazines, shared by all threads
+    private final ConcurrentLinkedQueue<Cube[]> depot = new ConcurrentLinkedQueue<Cube[]>();
+
+    // number of cubes in the depot, at most MAX_CACHE_SIZE
+    private final AtomicInteger depotSize = new AtomicInteger();
+
+    // longs around the counters of a magazine, a cache line
+    private static final int PADDING = 8;
+
+    // index of the counters of a magazine: cubes taken from the cache, and
+    // cubes created because it was empty
+    private static final int HITS = PADDING;
+
+    private static final int MISSES = PADDING + 1;
+
+    // magazine of each thread
+    private final ThreadLocal<Magazine> magazines = new ThreadLocal<Magazine>() {
+        protected Magazine initialValue() {
+            Magazine magazine = new Magazine();
+            allMagazines.add(magazine);
+            return magazine;
+        }
+    };
+
+    // magazines of all threads, to sum their counters
+    private final ConcurrentLinkedQueue<Magazine> allMagazines = new ConcurrentLinkedQueue<Magazine>();
+
+    /**
+     * Cubes and counters of a single thread.
+     */
+    private static class Magazine {
+        Cube[] cubes = new Cube[MAGAZINE_SIZE];
+
+        int size = 0;
 
-    private int currentSize;
+        final long[] counters = new long[MISSES + 1 + PADDING];
+    }
 
-    
     /**
      * Constructor.
-     * 
-     * @param cacheSize size of the cache.
+     *
      * @param cubeSize size of the cubes in the cache.
      */
     public CubeCache(int cubeSize) {
         this.cubeSize = cubeSize;
-        cache = new Cube[MAX_CACHE_SIZE];
-        currentSize = 0;
     }
 
     /**
      * Add given cube to the cache.
-     * 
+     *
      * @param cube cube to add to the cache
      */
     public void put(Cube cube) {
-        if (currentSize >= cache.length) {
-            // cache full
-            return;
+        Magazine magazine = magazines.get();
+
+        if (magazine.size == MAGAZINE_SIZE) {
+            if (depotSize.addAndGet(MAGAZINE_SIZE) > MAX_CACHE_SIZE) {
+                // cache full
+                depotSize.addAndGet(-MAGAZINE_SIZE);
+                return;
+            }
+            depot.add(magazine.cubes);
+            magazine.cubes = new Cube[MAGAZINE_SIZE];
+            magazine.size = 0;
         }
-        cache[currentSize] = cube;
-        currentSize++;
+
+        magazine.cubes[magazine.size] = cube;
+        magazine.size++;
     }
 
     /**
      * Get a cube from the cache.
-     * 
+     *
      * @return a cube from the cache
      */
     public Cube get() {
-        if (currentSize == 0) {
-            return new Cube(cubeSize);
+        Magazine magazine = magazines.get();
+
+        if (magazine.size == 0) {
+            Cube[] full = depot.poll();
+            if (full == null) {
+                magazine.counters[MISSES]++;
+                return new Cube(cubeSize);
+            }
+            depotSize.addAndGet(-MAGAZINE_SIZE);
+            magazine.cubes = full;
+            magazine.size = MAGAZINE_SIZE;
         }
 
-        currentSize--;
-        return cache[currentSize];
+        magazine.counters[HITS]++;
+        magazine.size--;
+        Cube result = magazine.cubes[magazine.size];
+        magazine.cubes[magazine.size] = null;
+        return result;
+    }
+
+    /**
+     * Returns the number of cubes taken from the cache. Only exact if no
+     * thread is using the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return sum(HITS);
+    }
+
+    /**
+     * Returns the number of cubes created because the cache was empty. Only
+     * exact if no thread is using the cache.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return sum(MISSES);
+    }
+
+    /**
+     * Sums a counter of all magazines.
+     *
+     * @param counter
+     *            index of the counter
+     * @return the sum
+     */
+    private long sum(int counter) {
+        long result = 0;
+        for (Magazine magazine : allMagazines) {
+            result += magazine.counters[counter];
+        }
+        return result;
     }
 
 }
@@ -0,0 +1,20 @@
+package rubiks.bonus;
+
+/**
+ * Lower bound on the number of twists needed to solve a cube. Used by the
+ * search to skip cubes which cannot be solved within the bound.
+ *
+ */
+public interface Heuristic {
+
+    /**
+     * Estimates the number of twists needed to solve a cube. Must never be
+     * more than the real number of twists needed.
+     *
+     * @param cube
+     *            the cube
+     * @return a lower bound on the number of twists needed to solve the cube
+     */
+    int estimate(Cube cube);
+
+}
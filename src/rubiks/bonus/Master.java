@@ -1,12 +1,10 @@
 package rubiks.bonus;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.List;
 
 import ibis.ipl.*;
 
@@ -41,10 +39,14 @@ public class Master{
 	 */
 	CubeCache cache;
 	/*
-	 * Thread pool
+	 * The local workers.
 	 */
-	ExecutorService executor;
-	Queue<Future<Integer>> results;
+	Scheduler scheduler;
+	/*
+	 * The jobs of the next bound, and the local ones of them started speculatively.
+	 */
+	Cube[][] nextJobs = null;
+	Speculation speculation = null;
 	/*
 	 * Receive and send ports.
 	 */
@@ -65,6 +67,10 @@ public class Master{
 	int bound = 0;
 	int solutions = 0;
 	int slavesAvailable = 0;
+	/*
+	 * The twists of the solutions found, only if the solutions are printed.
+	 */
+	List<int[]> solutionPaths = new ArrayList<int[]>();
 	/*
 	 * The number of slaves in the pool.
 	 */
@@ -80,8 +86,12 @@ public class Master{
 	 * 		The master-to-slave port type.
 	 * @param slaveToMaster
 	 * 		The slave-to-master port type.
+	 * @param threads
+	 * 		The number of local worker threads, 0 for one per core.
+	 * @param table
+	 * 		The transposition table of this node, null for none.
 	 */
-	public Master(Ibis ibis, Cube cube, PortType masterToSlave, PortType slaveToMaster)
+	public Master(Ibis ibis, Cube cube, PortType masterToSlave, PortType slaveToMaster, int threads, TranspositionTable table)
 	{
 		/*
 		 * Copy the parameters in the object fields.
@@ -94,12 +104,15 @@ public class Master{
 		 * Initialization of the local cache.
 		 */
 		this.cache = new CubeCache(cube.getSize());
+		/*
+		 * Track the twists done on the cube, so the jobs know how they were generated.
+		 */
+		if ( Rubiks.PRINT_SOLUTION ) cube.setPath(new int[0]);
 		/*
 		 * The number of slaves is the size of the pool, minus the master.
 		 */
 		slavesN = myIbis.registry().getPoolSize() - 1;
-		this.executor = Executors.newCachedThreadPool();
-		this.results = new LinkedList<Future<Integer>>();
+		this.scheduler = new Scheduler(threads, cache, table);
 	}
 	public void Run()
 	{
@@ -132,10 +145,11 @@ public class Master{
 		 * Print the duration timer.
 		 */
 		System.err.println("Solving cube took " + (end - start) + " milliseconds");
+		System.err.println("Cube cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
 		/*
-		 * Quit the pool
+		 * Stop the workers.
 		 */
-		this.executor.shutdown();
+		this.scheduler.shutdown();
 		/*
 		 * Quit slaves.
 		 */
@@ -164,6 +178,8 @@ public class Master{
             System.out.print(" 1");
     		System.out.println();
             System.out.println("Solving cube possible in " + this.solutions + " ways of " + bound + " steps");	
+            if ( Rubiks.PRINT_SOLUTION ) solutionPaths.add(cube.getPath());
+            printSolutions();
             return;
 		}
 		
@@ -175,49 +191,37 @@ public class Master{
 			this.bound ++;
             System.out.print(" " + bound);
             /*
-             * Set the bound and put the new cube in the jobs queue.
-             */
-            cube.setBound(bound);
-            jobs.add(cube);
-            /*
-             * Generate jobs.
+             * Generate the jobs, one array per slave plus the master's share (the last one), and the jobs
+             * of the next bound which are started speculatively while this bound finishes.
              */
-            generateJobs();
+            boolean speculated = nextJobs != null;
+            Cube[][] currentJobs = speculated ? nextJobs : assignJobs(bound);
+            nextJobs = assignJobs(bound + 1);
             /*
-             * Distribute Jobs
+             * Distribute Jobs. Slaves that already started the jobs of this bound only get the next ones.
              */
-            distributeJobs();
-            while ( !jobs.isEmpty() )
+            for ( int i = 0; i < slavesN; i++)
             {
-            	Cube c = jobs.pop();
-            	/*
-            	 * Solve your jobs.
-            	 */
-            	if ( c.getTwists() > 1 ) {
-            		this.results.add(this.executor.submit(new solverThread(c)));
-            	}
-            	else {
-					for ( Cube cc : c.generateChildren(cache))
-					{
-						this.results.add(this.executor.submit(new solverThread(cc)));
-					}
-				}
+            	send(sendPorts.get(i), speculated ? null : currentJobs[i], nextJobs[i]);
             }
+            /*
+             * Solve your jobs, the ones started speculatively are reused.
+             * The jobs of the next bound only get the cores the current ones leave idle.
+             */
+            Speculation current = speculated ? speculation : new Speculation(scheduler, currentJobs[slavesN], cache);
+            speculation = new Speculation(scheduler, nextJobs[slavesN], cache);
+            current.startAll();
+            speculation.startAll();
 			/*
 			 * Read results.
 			 */
-			while ( !this.results.isEmpty() )
-			{
-				try {
-					solutions += results.poll().get();
-				} 
-				catch (InterruptedException e) {
-					System.err.println("Waiting for the results in slave: " + e.getMessage());
-					return;
-				} catch (ExecutionException e) {
-					System.err.println("Waiting for the results in slave: " + e.getMessage());
-					return;
-				}
+			try {
+				solutions += current.collect();
+				if ( Rubiks.PRINT_SOLUTION ) solutionPaths.addAll(Arrays.asList(current.getPaths()));
+			} 
+			catch (InterruptedException e) {
+				System.err.println("Waiting for the results in master: " + e.getMessage());
+				return;
 			}
             /*
              * Wait for all the slaves to terminate their jobs.
@@ -231,17 +235,45 @@ public class Master{
             		 */
 	            	ReadMessage result = receive.receive();
         			this.solutions += result.readInt();
+        			if ( Rubiks.PRINT_SOLUTION )
+        			{
+        				/*
+        				 * And the twists of these solutions.
+        				 */
+        				solutionPaths.addAll(Arrays.asList((int[][]) result.readObject()));
+        			}
         			this.slavesAvailable++;
 	            	result.finish();
             	}
+				catch (ClassNotFoundException e1) 
+				{
+					System.err.println("During result.readObject(): " + e1.getMessage());
+				} 
 				catch (IOException e1) 
 				{
 					System.err.println("During result.readObject() or receive.receive(): " + e1.getMessage());
 				}
             }
 		}
+		/*
+		 * The speculative jobs are not needed anymore.
+		 */
+		speculation.cancel();
 		System.out.println();
         System.out.println("Solving cube possible in " + this.solutions + " ways of " + bound + " steps");	
+        printSolutions();
+	}
+	/**
+	 * Prints the twists of the solutions found, if the solutions are printed.
+	 * They are printed on standard error, so the standard output stays comparable.
+	 */
+	private void printSolutions()
+	{
+		if ( !Rubiks.PRINT_SOLUTION ) return;
+		for ( int[] path : solutionPaths )
+		{
+			System.err.println("Solution: " + Cube.movesToString(path, cube.getSize()));
+		}
 	}
 	/**
 	 * Sends the given cube array to the indicated port.
@@ -249,9 +281,11 @@ public class Master{
 	 * @param port
 	 * 			The port identifier of the indicated receive port.
 	 * @param cubes
-	 * 			The cube array to be sent.
+	 * 			The cube array to be sent, null if the slave already has it.
+	 * @param nextCubes
+	 * 			The cube array of the next bound, to start speculatively.
 	 */			
-	private void send (SendPort sendPort,  Cube[] cubes)
+	private void send (SendPort sendPort,  Cube[] cubes, Cube[] nextCubes)
 	{
 		try
 		{
@@ -263,6 +297,7 @@ public class Master{
     		 * Write the cube to send in the message.
     		 */
     		writeMessage.writeObject(cubes);
+    		writeMessage.writeObject(nextCubes);
     		/*
     		 * Send the message.
     		 */
@@ -335,7 +370,7 @@ public class Master{
 	{
 		for ( SendPort sendPort : sendPorts)
 		{
-			send(sendPort, null);
+			send(sendPort, null, null);
 		}
 	}
 	/**
@@ -364,9 +399,12 @@ public class Master{
 		}
 	}
 	/**
-	 * Generates the jobs for the current iteration.
+	 * Generates the jobs for the given bound.
+	 * 
+	 * @param bound
+	 * 			The bound of the jobs.
 	 */
-	private void generateJobs()
+	private void generateJobs(int bound)
 	{
 		int poolSize = slavesN + 1;
 		/*
@@ -374,7 +412,7 @@ public class Master{
 		 * Of course, if the bound is less than that number, I can't execute more twists than the bound value.
 		 */
 		int initial_twists = INITIAL_TWISTS;
-        for(int i = 0; i <  Math.min(initial_twists, this.bound); i++)
+        for(int i = 0; i <  Math.min(initial_twists, bound); i++)
         {
         	/*
         	 * If the jobs can be distributed in balanced way, stop.
@@ -405,17 +443,32 @@ public class Master{
         }
 	}
 	/**
-	 * Sends jobs to the slaves
+	 * Generates and assigns the jobs of a bound to the slaves and the master.
+	 * 
+	 * @param bound
+	 * 			The bound of the jobs.
+	 * @return the jobs of each slave, followed by the jobs of the master.
 	 */
-	private void distributeJobs()
+	private Cube[][] assignJobs(int bound)
 	{
+		/*
+		 * Jobs are generated from a copy of the cube, as jobs of the previous bound may still use it.
+		 */
+		Cube root = new Cube(cube);
+		root.setBound(bound);
+		jobs.add(root);
+		generateJobs(bound);
 		/*
 		 * If the first (so the heaviest) job needs less then SEQUENTIAL_THRESHOLD twists, jobs are not distributed.
 		 */
 		//if ( jobs.peek().getBound() - jobs.peek().getTwists() < SEQUENTIAL_THRESHOLD ) return;			
 		
 		int maxJob = (int)Math.ceil(jobs.size()/(slavesN+1));
-		Cube[][] distributedJobs = new Cube[slavesN][maxJob];
+		Cube[][] distributedJobs = new Cube[slavesN + 1][];
+		for ( int j = 0; j < slavesN; j++ )
+		{
+			distributedJobs[j] = new Cube[maxJob];
+		}
 		/*
 		 * Jobs are distributed in a round robin fashion (this is necessary, since the jobs tend to be less heavy
 		 * while going to the end of the queue.
@@ -432,18 +485,14 @@ public class Master{
 			}
 		}
 		/*
-		 * Jobs are sent.
+		 * Jobs that are going to be executed by the master, including the ones left over.
 		 */
-		for ( int i = 0; i < slavesN; i++)
+		while ( !jobs.isEmpty() )
 		{
-			send(sendPorts.get(i), distributedJobs[i]);
-		}
-		/*
-		 * Jobs that are going to be executed by the master are put in the jobs queue.
-		 */
-		while ( !auxQueue.isEmpty() )
-		{
-			jobs.add(auxQueue.pop());
+			auxQueue.add(jobs.pop());
 		}
+		distributedJobs[slavesN] = auxQueue.toArray(new Cube[auxQueue.size()]);
+		auxQueue.clear();
+		return distributedJobs;
 	}
 }
@@ -41,7 +41,9 @@ public class Rubiks {
 		System.out
 			.println("--seed SEED\t\tSeed of random generator (default: 0");
 		System.out
-			.println("--threads THREADS\t\tNumber of threads to use (default: 1, other values not supported by sequential version)");
+			.println("--threads THREADS\tNumber of worker threads per node (default: one per core)");
+		System.out
+			.println("--transpositions MB\tMemory of the transposition table shared by the workers of a node (default: 0, no table)");
 		System.out.println("");
 		System.out
 			.println("--file FILE_NAME\t\tLoad cube from given file instead of generating it");
@@ -63,8 +65,11 @@ public class Rubiks {
 		int seed = 0;
 		String fileName = null;
 
-		// number of threads used to solve puzzle
-		// (not used in sequential version)
+		// number of worker threads per node, 0 for one per core
+		int threads = 0;
+
+		// memory of the transposition table in MB, 0 for none
+		int transpositions = 0;
 
 		for (int i = 0; i < arguments.length; i++) {
 		    if (arguments[i].equalsIgnoreCase("--size")) {
@@ -76,6 +81,12 @@ public class Rubiks {
 		    } else if (arguments[i].equalsIgnoreCase("--seed")) {
 			i++;
 			seed = Integer.parseInt(arguments[i]);
+		    } else if (arguments[i].equalsIgnoreCase("--threads")) {
+			i++;
+			threads = Integer.parseInt(arguments[i]);
+		    } else if (arguments[i].equalsIgnoreCase("--transpositions")) {
+			i++;
+			transpositions = Integer.parseInt(arguments[i]);
 		    } else if (arguments[i].equalsIgnoreCase("--file")) {
 			i++;
 			fileName = arguments[i];
@@ -112,6 +123,8 @@ public class Rubiks {
 			System.err.println("Ibis creation failed: " + e.getMessage());
 			System.exit(1);
 		}
+		//Transposition table of this node.
+		TranspositionTable table = transpositions > 0 ? new TranspositionTable(transpositions) : null;
 		//Master election.
 		IbisIdentifier master = null;
 		try 
@@ -132,11 +145,11 @@ public class Rubiks {
 			cube.print(System.out);
 			System.out.flush();	
 			//Start the master.
-			new Master(ibis, cube, masterToSlavePortType, slaveToMasterPortType).Run();
+			new Master(ibis, cube, masterToSlavePortType, slaveToMasterPortType, threads, table).Run();
 		}
 		else
 		{
-			new Slave(ibis, master, masterToSlavePortType, slaveToMasterPortType, cube.getSize()).Run();
+			new Slave(ibis, master, masterToSlavePortType, slaveToMasterPortType, cube.getSize(), threads, table).Run();
 		}
 		
 		try 
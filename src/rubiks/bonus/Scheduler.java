@@ -0,0 +1,345 @@
+package rubiks.bonus;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * A fixed number of worker threads, one per core by default, solving the local jobs.
+ * Each worker keeps its own search for all the jobs it solves, the cube cache is shared.
+ * Jobs of a lower bound are always taken first, so jobs started speculatively
+ * only use the cores the current bound leaves idle.
+ * Idle workers steal work from busy ones, so all the cores stay busy until the end of a bound.
+ */
+public class Scheduler {
+	/*
+	 * Number of jobs per worker the jobs are split into at the start.
+	 * Workers finishing early steal the rest of the work from the others.
+	 */
+	static final int JOBS_PER_WORKER = 2;
+	/*
+	 * The jobs waiting for a worker, lowest bound first.
+	 */
+	PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>();
+	/*
+	 * Order in which jobs were submitted, jobs of the same bound are taken in this order.
+	 */
+	AtomicLong submitted = new AtomicLong();
+	/*
+	 * The worker threads.
+	 */
+	Worker[] workers;
+	/*
+	 * The cube cache shared by the workers, the cubes of removed jobs go back to it.
+	 */
+	CubeCache cache;
+	/**
+	 * Creates and starts the workers.
+	 *
+	 * @param workersN
+	 * 		The number of worker threads, 0 for one per core.
+	 * @param cache
+	 * 		The cube cache shared by the workers.
+	 * @param table
+	 * 		The transposition table shared by the workers, null for none.
+	 */
+	public Scheduler(int workersN, CubeCache cache, TranspositionTable table)
+	{
+		if ( workersN <= 0 ) workersN = Runtime.getRuntime().availableProcessors();
+		this.cache = cache;
+		workers = new Worker[workersN];
+		for ( int i = 0; i < workersN; i++ )
+		{
+			workers[i] = new Worker(this, cache, table);
+		}
+		/*
+		 * Workers look at each other to steal work, so they are only started once all exist.
+		 */
+		for ( Worker worker : workers )
+		{
+			worker.start();
+		}
+	}
+	/**
+	 * Returns the number of workers.
+	 *
+	 * @return the number of worker threads.
+	 */
+	public int getWorkers()
+	{
+		return workers.length;
+	}
+	/**
+	 * Returns the number of jobs the local work should be split into.
+	 *
+	 * @return the number of jobs wanted.
+	 */
+	public int getGranularity()
+	{
+		return workers.length * JOBS_PER_WORKER;
+	}
+	/**
+	 * Queues a job.
+	 *
+	 * @param cube
+	 * 		The cube to solve.
+	 * @param owner
+	 * 		The jobs this one belongs to.
+	 */
+	void submit(Cube cube, Speculation owner)
+	{
+		queue.add(new Job(cube, owner, submitted.getAndIncrement()));
+	}
+	/**
+	 * Removes all the queued jobs of the given owner, their cubes go back to the cache.
+	 *
+	 * @param owner
+	 * 		The jobs to remove.
+	 */
+	void remove(Speculation owner)
+	{
+		remove(queue.iterator(), owner);
+		for ( Worker worker : workers )
+		{
+			remove(worker.split.iterator(), owner);
+		}
+	}
+	/**
+	 * Removes the jobs of the given owner through an iterator, so the jobs are not searched again one by one.
+	 *
+	 * @param jobs
+	 * 		The jobs to look at.
+	 * @param owner
+	 * 		The jobs to remove.
+	 */
+	private void remove(Iterator<Job> jobs, Speculation owner)
+	{
+		while ( jobs.hasNext() )
+		{
+			Job job = jobs.next();
+			if ( job.owner != owner ) continue;
+			jobs.remove();
+			/*
+			 * A worker may have taken the job meanwhile, then the worker gives the cube back.
+			 */
+			if ( job.take() ) cache.put(job.cube);
+		}
+	}
+	/**
+	 * Picks a random worker to steal from, solving a job of a lower bound than the given one.
+	 *
+	 * @param thief
+	 * 		The worker looking for work.
+	 * @param bound
+	 * 		Only workers solving a lower bound than this one are picked.
+	 * @return the victim, or null if there is none.
+	 */
+	Worker victim(Worker thief, int bound)
+	{
+		int start = ThreadLocalRandom.current().nextInt(workers.length);
+		for ( int i = 0; i < workers.length; i++ )
+		{
+			Worker worker = workers[(start + i) % workers.length];
+			Job job = worker.current;
+			if ( worker == thief || job == null || job.owner.cancelled ) continue;
+			if ( job.cube.getBound() < bound ) return worker;
+		}
+		return null;
+	}
+	/**
+	 * Stops the workers. Queued jobs are not solved anymore.
+	 */
+	public void shutdown()
+	{
+		queue.clear();
+		for ( Worker worker : workers )
+		{
+			worker.interrupt();
+		}
+	}
+}
+
+/**
+ * A cube waiting to be solved.
+ */
+class Job implements Comparable<Job> {
+	Cube cube;
+	Speculation owner;
+	long order;
+	/*
+	 * Set by the first to take the job out of the queues: a worker, or the scheduler removing it.
+	 */
+	AtomicBoolean taken = new AtomicBoolean();
+	public Job(Cube cube, Speculation owner, long order)
+	{
+		this.cube = cube;
+		this.owner = owner;
+		this.order = order;
+	}
+	/**
+	 * Takes the job, only once.
+	 *
+	 * @return true if the job was not taken yet.
+	 */
+	boolean take()
+	{
+		return taken.compareAndSet(false, true);
+	}
+	@Override
+	public int compareTo(Job other)
+	{
+		if ( cube.getBound() != other.cube.getBound() )
+		{
+			return cube.getBound() < other.cube.getBound() ? -1 : 1;
+		}
+		return order < other.order ? -1 : ( order == other.order ? 0 : 1 );
+	}
+}
+
+/**
+ * A worker thread, solving jobs until the scheduler is shut down.
+ * A worker without jobs steals work from the others: it asks a busy worker (the victim)
+ * to split its search, and takes the shallowest unexplored siblings the victim gives away.
+ */
+class Worker extends Thread {
+	/*
+	 * Number of twists between two checks for cancellation and steal requests.
+	 */
+	static final long STEP = 1 << 12;
+	/*
+	 * Time an idle worker waits for a victim to answer its steal request, in nanoseconds,
+	 * and for new jobs when there is nothing to steal, in milliseconds.
+	 */
+	static final long STEAL_WAIT = 50 * 1000;
+	static final long IDLE_WAIT = 10;
+	Scheduler scheduler;
+	/*
+	 * The search of this worker, and the cache and table shared by all workers.
+	 * The search is created by the worker itself (see run()), so it and its buffers
+	 * are in memory of this thread, not next to the searches of the other workers.
+	 */
+	Search search;
+	CubeCache cache;
+	TranspositionTable table;
+	/*
+	 * The job being solved, null if idle.
+	 */
+	volatile Job current = null;
+	/*
+	 * Set by thieves: the next time this worker checks, it splits its search.
+	 */
+	volatile boolean stealRequest = false;
+	/*
+	 * The work split off the search of this worker.
+	 * The owner takes from the back, thieves from the front, without locking.
+	 */
+	ConcurrentLinkedDeque<Job> split = new ConcurrentLinkedDeque<Job>();
+	public Worker(Scheduler scheduler, CubeCache cache, TranspositionTable table)
+	{
+		this.scheduler = scheduler;
+		this.cache = cache;
+		this.table = table;
+		setDaemon(true);
+	}
+	@Override
+	public void run()
+	{
+		search = new Search(cache);
+		search.setTable(table);
+		while ( true )
+		{
+			Job job;
+			try
+			{
+				job = findJob();
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+			if ( job == null || !job.take() ) continue;
+			if ( job.owner.cancelled )
+			{
+				/*
+				 * The job is not needed anymore, but its cube can still be reused.
+				 */
+				cache.put(job.cube);
+				continue;
+			}
+			solve(job);
+		}
+	}
+	/**
+	 * Finds a job: first the work split off this worker, then work stolen from a worker
+	 * solving a lower bound than the queued jobs, then the queued jobs.
+	 *
+	 * @return a job, or null if none was found yet.
+	 */
+	private Job findJob() throws InterruptedException
+	{
+		Job job = split.pollLast();
+		if ( job != null ) return job;
+		
+		Job head = scheduler.queue.peek();
+		Worker victim = scheduler.victim(this, head == null ? Integer.MAX_VALUE : head.cube.getBound());
+		if ( victim != null )
+		{
+			job = victim.split.pollFirst();
+			if ( job != null ) return job;
+			/*
+			 * Nothing split off yet, ask the victim and try again shortly.
+			 */
+			victim.stealRequest = true;
+			LockSupport.parkNanos(STEAL_WAIT);
+			if ( Thread.interrupted() ) throw new InterruptedException();
+			return null;
+		}
+		return scheduler.queue.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * Solves a job, splitting the search when another worker asks for work.
+	 *
+	 * @param job
+	 * 		The job to solve.
+	 */
+	private void solve(Job job)
+	{
+		current = job;
+		if ( Rubiks.PRINT_SOLUTION ) search.clearPaths();
+		search.reset(job.cube);
+		boolean finished;
+		do
+		{
+			finished = search.step(STEP);
+			if ( !finished && stealRequest )
+			{
+				stealRequest = false;
+				Cube[] cubes = search.split();
+				if ( cubes != null )
+				{
+					job.owner.jobsAdded(cubes.length);
+					for ( Cube c : cubes )
+					{
+						split.addLast(new Job(c, job.owner, scheduler.submitted.getAndIncrement()));
+					}
+				}
+			}
+			/*
+			 * Speculative jobs are cancelled when they turn out not to be needed.
+			 */
+		} while ( !finished && !job.owner.cancelled );
+		current = null;
+		if ( finished ) job.owner.jobDone(search.getSolutions(), search);
+		/*
+		 * The cube of the job is not used anymore, any worker can reuse it.
+		 */
+		cache.put(job.cube);
+	}
+}
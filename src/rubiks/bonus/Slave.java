@@ -1,8 +1,6 @@
 package rubiks.bonus;
 
 import java.io.*;
-import java.util.*;
-import java.util.concurrent.*;
 
 import ibis.ipl.*;
 
@@ -21,10 +19,9 @@ public class Slave {
 	PortType slaveToMasterPortType;
 	CubeCache cache;
 	/*
-	 * Thread pool
+	 * The local workers.
 	 */
-	ExecutorService executor;
-	Queue<Future<Integer>> results;
+	Scheduler scheduler;
 	/**
 	 * Creates a new Slave.
 	 * 
@@ -38,16 +35,19 @@ public class Slave {
 	 * 		The slave-to-master port type.
 	 * @param cubeSize
 	 * 		The size of the cube to be solved.
+	 * @param threads
+	 * 		The number of local worker threads, 0 for one per core.
+	 * @param table
+	 * 		The transposition table of this node, null for none.
 	 */
-	public Slave(Ibis ibis, IbisIdentifier master, PortType masterToSlave, PortType slaveToMaster, int cubeSize)
+	public Slave(Ibis ibis, IbisIdentifier master, PortType masterToSlave, PortType slaveToMaster, int cubeSize, int threads, TranspositionTable table)
 	{
 		this.master = master;
 		this.myIbis = ibis;
 		this.masterToSlavePortType = masterToSlave;
 		this.slaveToMasterPortType = slaveToMaster;
-		this.executor = Executors.newCachedThreadPool();
-		this.results = new LinkedList<Future<Integer>>();
 		this.cache = new CubeCache(cubeSize);
+		this.scheduler = new Scheduler(threads, cache, table);
 	}
 	
 	public void Run()
@@ -104,9 +104,12 @@ public class Slave {
 			return;
 		}
 		/*
-		 * The cubes to solve will be in this variable.
+		 * The cubes to solve will be in this variable, the cubes of the next bound in nextCubes.
+		 * The jobs of the next bound are started speculatively while this bound finishes.
 		 */
 		Cube[] currentCubes = null;
+		Cube[] nextCubes = null;
+		Speculation speculation = null;
 		do
 		{
 			/*
@@ -116,6 +119,7 @@ public class Slave {
 			{
 				ReadMessage job = receive.receive();
 				currentCubes = (Cube[]) job.readObject();
+				nextCubes = (Cube[]) job.readObject();
 		        job.finish();
 			}
 			catch ( IOException e)
@@ -129,39 +133,34 @@ public class Slave {
 				return;
 			}
 			
-			if ( currentCubes != null)
+			if ( nextCubes != null)
 			{
 				/*
-				 * If there is a new job, create threads.
+				 * If there is a new job, start it. Without new cubes the jobs started
+				 * speculatively during the previous bound are the current ones.
 				 */
-				int solutions = 0;
-				for ( Cube currentCube : currentCubes)
+				Speculation current = speculation;
+				if ( currentCubes != null || current == null )
 				{
-					if ( currentCube.getTwists() > 1){
-						this.results.add(this.executor.submit(new solverThread(currentCube)));
-					}
-					else {
-						for ( Cube c : currentCube.generateChildren(cache))
-						{
-							this.results.add(this.executor.submit(new solverThread(c)));
-						}
-					}
+					if ( current != null ) current.cancel();
+					current = new Speculation(scheduler, currentCubes, cache);
 				}
+				speculation = new Speculation(scheduler, nextCubes, cache);
+				/*
+				 * The jobs of the next bound only get the cores the current ones leave idle.
+				 */
+				current.startAll();
+				speculation.startAll();
 				/*
 				 * Read results.
 				 */
-				while ( !this.results.isEmpty() )
-				{
-					try {
-						solutions += results.poll().get();
-					} 
-					catch (InterruptedException e) {
-						System.err.println("Waiting for the results in slave: " + e.getMessage());
-						return;
-					} catch (ExecutionException e) {
-						System.err.println("Waiting for the results in slave: " + e.getMessage());
-						return;
-					}
+				int solutions = 0;
+				try {
+					solutions = current.collect();
+				} 
+				catch (InterruptedException e) {
+					System.err.println("Waiting for the results in slave: " + e.getMessage());
+					return;
 				}
 				/*
 				 * Send the result back.
@@ -170,6 +169,13 @@ public class Slave {
 				{
 					 WriteMessage result = send.newMessage();
 				     result.writeInt(solutions);
+				     if ( Rubiks.PRINT_SOLUTION )
+				     {
+				    	 /*
+				    	  * Also send the twists of the solutions found.
+				    	  */
+				    	 result.writeObject(current.getPaths());
+				     }
 				     result.finish();
 				}
 				catch ( IOException e)
@@ -178,11 +184,15 @@ public class Slave {
 					return;
 				}
 			}
-		} while ( currentCubes != null);
+		} while ( nextCubes != null);
 		/*
-		 * Close the pool.
+		 * The cube is solved, the speculative jobs are not needed anymore.
 		 */
-		this.executor.shutdown();
+		if ( speculation != null ) speculation.cancel();
+		/*
+		 * Stop the workers.
+		 */
+		this.scheduler.shutdown();
 		/*
 		 * Close the sent port.
 		 */
@@ -210,59 +220,3 @@ public class Slave {
 	}
 }
 
-
-class solverThread implements Callable<Integer> {
-	/*
-	 * The cube and the cache.
-	 */
-	Cube cube;
-	CubeCache cache;
-	public solverThread(Cube cube) {
-		this.cube = cube;
-		this.cache = new CubeCache(cube.getSize());
-	}
-	/**
-     * Recursive function to find a solution for a given cube. Only searches to
-     * the bound set in the cube object.
-     * 
-     * @param cube
-     *            cube to solve
-     * @param cache
-     *            cache of cubes used for new cube objects
-     * @return the number of solutions found
-     */
-    private static int solutions(Cube cube, CubeCache cache) {
-        if (cube.isSolved()) {
-            return 1;
-        }
-
-        if (cube.getTwists() >= cube.getBound()) {
-            return 0;
-        }
-
-        // generate all possible cubes from this one by twisting it in
-        // every possible way. Gets new objects from the cache
-        Cube[] children = cube.generateChildren(cache);
-
-        int result = 0;
-
-        for (Cube child : children) {
-            // recursion step
-            int childSolutions = solutions(child, cache);
-            if (childSolutions > 0) {
-                result += childSolutions;
-            }
-            // put child object in cache
-            cache.put(child);
-        }
-        return result;
-    }
-
-	@Override
-	public Integer call() throws Exception {
-		int solutions = 0;
-		solutions += solutions(cube, cache);
-		return solutions;
-	}
-}
-
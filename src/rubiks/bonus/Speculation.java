@@ -0,0 +1,143 @@
+package rubiks.bonus;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * The local jobs of one bound.
+ * The jobs of the next bound can be started before the current bound is finished:
+ * the scheduler gives them the cores the jobs of the current bound leave idle.
+ * If the current bound has solutions, the successor is cancelled,
+ * otherwise the results it already computed are used for the next bound.
+ */
+public class Speculation {
+	/*
+	 * The scheduler running the jobs.
+	 */
+	Scheduler scheduler;
+	/*
+	 * Jobs not started yet.
+	 */
+	LinkedList<Cube> pending = new LinkedList<Cube>();
+	/*
+	 * Number of started jobs not finished yet, and the solutions found by the finished ones.
+	 */
+	int running = 0;
+	int solutions = 0;
+	/*
+	 * The twists of the solutions found, only if the solutions are printed.
+	 */
+	ConcurrentLinkedQueue<int[]> paths = new ConcurrentLinkedQueue<int[]>();
+	volatile boolean cancelled = false;
+	/**
+	 * Creates the jobs of a bound. Nothing is started yet.
+	 * The cubes are split in their children until there are enough jobs for all the workers.
+	 *
+	 * @param scheduler
+	 * 		The scheduler to run the jobs on.
+	 * @param jobs
+	 * 		The cubes to solve.
+	 * @param cache
+	 * 		The cache used to generate the children.
+	 */
+	public Speculation(Scheduler scheduler, Cube[] jobs, CubeCache cache)
+	{
+		this.scheduler = scheduler;
+		for ( Cube job : jobs )
+		{
+			if ( job != null ) pending.add(job);
+		}
+		/*
+		 * The first cubes have the least twists, so they are the heaviest ones.
+		 * A solved cube or a cube one twist from the bound is not worth splitting.
+		 */
+		while ( !pending.isEmpty() && pending.size() < scheduler.getGranularity() )
+		{
+			Cube job = pending.peek();
+			if ( job.isSolved() || job.getTwists() + 1 >= job.getBound() ) break;
+			pending.poll();
+			for ( Cube c : job.generateChildren(cache))
+			{
+				pending.add(c);
+			}
+			cache.put(job);
+		}
+	}
+	/**
+	 * Starts all the pending jobs. Jobs of a lower bound are always taken first,
+	 * so speculative jobs can be started as soon as they are created.
+	 */
+	public synchronized void startAll()
+	{
+		if ( cancelled ) return;
+		Cube job;
+		while ( (job = pending.poll()) != null )
+		{
+			running++;
+			scheduler.submit(job, this);
+		}
+	}
+	/**
+	 * Called by a worker when it splits one of the jobs in more jobs.
+	 *
+	 * @param added
+	 * 		The number of jobs split off.
+	 */
+	synchronized void jobsAdded(int added)
+	{
+		running += added;
+	}
+	/**
+	 * Called by a worker when one of the jobs is finished.
+	 *
+	 * @param found
+	 * 		The number of solutions found by the job.
+	 * @param search
+	 * 		The search which solved the job.
+	 */
+	synchronized void jobDone(int found, Search search)
+	{
+		solutions += found;
+		if ( Rubiks.PRINT_SOLUTION ) paths.addAll(search.getPaths());
+		running--;
+		if ( running == 0 ) notifyAll();
+	}
+	/**
+	 * Starts the remaining jobs and waits for all of them.
+	 *
+	 * @return the number of solutions found.
+	 */
+	public synchronized int collect() throws InterruptedException
+	{
+		startAll();
+		while ( running > 0 )
+		{
+			wait();
+		}
+		return solutions;
+	}
+	/**
+	 * Returns the twists of the solutions found by the finished jobs.
+	 * Only recorded if Rubiks.PRINT_SOLUTION is set.
+	 *
+	 * @return the twists of each solution found.
+	 */
+	public int[][] getPaths()
+	{
+		return paths.toArray(new int[0][]);
+	}
+	/**
+	 * Cancels all the jobs, running ones stop at their next check.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+		synchronized ( this )
+		{
+			pending.clear();
+		}
+		scheduler.remove(this);
+	}
+}
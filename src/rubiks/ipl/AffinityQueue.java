@@ -0,0 +1,203 @@
+package rubiks.ipl;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * The jobs of one bound, each kept for the node that solved the same subtree in the previous bounds.
+ * A job is known by the twists done on the cube to solve to get it. Its owner is the node that solved the job
+ * with the same twists, or else the job it was generated from, the last time. So the subtrees of the next bound
+ * go where the ones of the previous bound went, and the transposition table of that node already has their cubes.
+ *
+ * A node takes its own jobs first, then the jobs nobody owns yet. Only when both are gone does it take
+ * the jobs of the node with the most left, which then become its own.
+ * Nodes are known by any index, so nodes may join between two calls.
+ */
+public class AffinityQueue {
+	/*
+	 * The owner of the jobs solved so far, by their twists.
+	 */
+	Map<String, Integer> owners = new HashMap<String, Integer>();
+	/*
+	 * The jobs not taken yet of each owner, by its index, and the ones without owner.
+	 */
+	Map<Integer, ArrayDeque<Cube>> owned = new HashMap<Integer, ArrayDeque<Cube>>();
+	ArrayDeque<Cube> free = new ArrayDeque<Cube>();
+	/*
+	 * The number of jobs not taken yet.
+	 */
+	int left = 0;
+	/**
+	 * Replaces the jobs left by the jobs of a new bound, each given to its owner.
+	 *
+	 * @param jobs
+	 * 		The jobs, with their twists tracked. null elements are skipped.
+	 */
+	public synchronized void fill(Cube[] jobs)
+	{
+		for ( ArrayDeque<Cube> queue : owned.values() )
+		{
+			queue.clear();
+		}
+		free.clear();
+		left = 0;
+		for ( Cube job : jobs )
+		{
+			if ( job == null ) continue;
+			Integer owner = ownerOf(job.getPath());
+			if ( owner == null ) free.add(job);
+			else ownedBy(owner).add(job);
+			left++;
+		}
+	}
+	/**
+	 * Takes a batch of jobs for a node.
+	 *
+	 * @param node
+	 * 		The index of the node.
+	 * @param size
+	 * 		The maximum number of jobs taken.
+	 * @return the jobs, an empty array if there are none left.
+	 */
+	public synchronized Cube[] take(int node, int size)
+	{
+		Cube[] batch = new Cube[Math.min(size, left)];
+		ArrayDeque<Cube> own = ownedBy(node);
+		for ( int i = 0; i < batch.length; i++ )
+		{
+			if ( !own.isEmpty() )
+			{
+				batch[i] = own.poll();
+				continue;
+			}
+			if ( !free.isEmpty() ) batch[i] = free.poll();
+			else batch[i] = largest().pollLast();
+			owners.put(key(batch[i].getPath(), batch[i].getPath().length), node);
+		}
+		left -= batch.length;
+		return batch;
+	}
+	/**
+	 * Puts back jobs taken, which were not solved after all. They have no owner anymore.
+	 *
+	 * @param jobs
+	 * 		The jobs.
+	 */
+	public synchronized void putBack(Cube[] jobs)
+	{
+		for ( Cube job : jobs )
+		{
+			free.add(job);
+			left++;
+		}
+	}
+	/**
+	 * Forgets a node: its jobs not taken yet, and the jobs of the next bounds it would have owned, have no owner anymore.
+	 *
+	 * @param node
+	 * 		The index of the node.
+	 */
+	public synchronized void forget(int node)
+	{
+		ArrayDeque<Cube> own = owned.remove(node);
+		if ( own != null ) free.addAll(own);
+		owners.values().removeAll(Collections.singleton(node));
+	}
+	/**
+	 * Returns if all the jobs are taken.
+	 *
+	 * @return true if there are no jobs left.
+	 */
+	public synchronized boolean isEmpty()
+	{
+		return left == 0;
+	}
+	/**
+	 * Returns where the threads of a node take their jobs from, one at a time.
+	 *
+	 * @param node
+	 * 		The index of the node.
+	 * @return the jobs of the node.
+	 */
+	public LocalSolver.Source source(final int node)
+	{
+		return new LocalSolver.Source() {
+			@Override
+			public Cube take()
+			{
+				Cube[] job = AffinityQueue.this.take(node, 1);
+				return job.length == 0 ? null : job[0];
+			}
+		};
+	}
+	/**
+	 * Returns the owner of a job: the owner of the longest start of its twists that has one.
+	 * The cube to solve itself is never a job, so it has no owner.
+	 *
+	 * @param path
+	 * 		The twists of the job.
+	 * @return the index of the owner, or null if none.
+	 */
+	private Integer ownerOf(int[] path)
+	{
+		for ( int length = path.length; length > 0; length-- )
+		{
+			Integer owner = owners.get(key(path, length));
+			if ( owner != null ) return owner;
+		}
+		return null;
+	}
+	/**
+	 * Returns the owned jobs of the node with the most left.
+	 *
+	 * @return the jobs, not empty if there are jobs left.
+	 */
+	private ArrayDeque<Cube> largest()
+	{
+		ArrayDeque<Cube> result = free;
+		for ( ArrayDeque<Cube> queue : owned.values() )
+		{
+			if ( queue.size() > result.size() ) result = queue;
+		}
+		return result;
+	}
+	/**
+	 * Returns the owned jobs of a node, created empty the first time.
+	 *
+	 * @param node
+	 * 		The index of the node.
+	 * @return the jobs.
+	 */
+	private ArrayDeque<Cube> ownedBy(int node)
+	{
+		ArrayDeque<Cube> own = owned.get(node);
+		if ( own == null )
+		{
+			own = new ArrayDeque<Cube>();
+			owned.put(node, own);
+		}
+		return own;
+	}
+	/**
+	 * Returns the key of the first twists of a job, one character per twist.
+	 *
+	 * @param path
+	 * 		The twists of the job.
+	 * @param length
+	 * 		The number of twists.
+	 * @return the key.
+	 */
+	private static String key(int[] path, int length)
+	{
+		char[] twists = new char[length];
+		for ( int i = 0; i < length; i++ )
+		{
+			twists[i] = (char) path[i];
+		}
+		return new String(twists);
+	}
+}
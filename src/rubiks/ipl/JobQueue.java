@@ -0,0 +1,42 @@
+package rubiks.ipl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * The jobs of a batch, taken in order by the local threads.
+ * Taking jobs never blocks: the index of the next job is simply increased.
+ */
+public class JobQueue implements LocalSolver.Source {
+	/*
+	 * The jobs, and the index of the first job not taken yet.
+	 */
+	Cube[] jobs;
+	AtomicInteger next = new AtomicInteger();
+	/**
+	 * Creates a queue with the given jobs.
+	 *
+	 * @param jobs
+	 * 		The jobs, null elements are skipped.
+	 */
+	public JobQueue(Cube[] jobs)
+	{
+		this.jobs = jobs;
+	}
+	/**
+	 * Takes the next job.
+	 *
+	 * @return the job, or null if there are none left.
+	 */
+	@Override
+	public Cube take()
+	{
+		int i;
+		while ( (i = next.getAndIncrement()) < jobs.length )
+		{
+			if ( jobs[i] != null ) return jobs[i];
+		}
+		return null;
+	}
+}
@@ -0,0 +1,292 @@
+package rubiks.ipl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * Solves the jobs received by a node on all its cores.
+ * A fixed number of threads, one per core by default, take the cubes of a batch one at a time,
+ * each with a search and cache of its own, until the whole batch is solved.
+ */
+public class LocalSolver {
+	/*
+	 * Number of twists between two checks for split requests, when solving a work unit.
+	 */
+	static final long STEP = 1 << 12;
+	/*
+	 * The threads solving the cubes.
+	 */
+	ExecutorService executor;
+	int threads;
+	/*
+	 * The search of each thread.
+	 */
+	ThreadLocal<Search> searches;
+	/*
+	 * The twists of the solutions found, only if the solutions are printed.
+	 */
+	ConcurrentLinkedQueue<int[]> paths = new ConcurrentLinkedQueue<int[]>();
+	/**
+	 * Where the threads take their jobs from, one at a time.
+	 */
+	public interface Source {
+		/**
+		 * Takes the next job.
+		 *
+		 * @return the job, or null if there are none left.
+		 */
+		Cube take();
+	}
+	/**
+	 * Creates the threads.
+	 *
+	 * @param threads
+	 * 		The number of threads, 0 for one per core.
+	 * @param cubeSize
+	 * 		The size of the cubes to solve.
+	 * @param table
+	 * 		The transposition table shared by the threads, null for none.
+	 */
+	public LocalSolver(int threads, final int cubeSize, final TranspositionTable table)
+	{
+		if ( threads <= 0 ) threads = Runtime.getRuntime().availableProcessors();
+		this.threads = threads;
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.searches = new ThreadLocal<Search>() {
+			@Override
+			protected Search initialValue()
+			{
+				Search search = new Search(new CubeCache(cubeSize));
+				search.setTable(table);
+				return search;
+			}
+		};
+	}
+	/**
+	 * Returns the number of threads, which is the number of cores this node offers to the pool.
+	 *
+	 * @return the number of threads.
+	 */
+	public int getThreads()
+	{
+		return threads;
+	}
+	/**
+	 * Solves a batch of cubes.
+	 *
+	 * @param cubes
+	 * 		The cubes to solve, null elements are skipped.
+	 * @return the total number of solutions found.
+	 */
+	public int solve(Cube[] cubes) throws InterruptedException, ExecutionException
+	{
+		return collect(start(new JobQueue(cubes), Math.min(threads, cubes.length)));
+	}
+	/**
+	 * Starts solving the jobs of a queue, which may also be taken by others at the same time.
+	 *
+	 * @param queue
+	 * 		Where the jobs to solve are taken from.
+	 * @param tasks
+	 * 		The number of threads taking jobs, at most the number of threads.
+	 * @return the number of solutions found by each thread, see collect().
+	 */
+	public List<Future<Integer>> start(final Source queue, int tasks)
+	{
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for ( int i = 0; i < tasks; i++ )
+		{
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call()
+				{
+					/*
+					 * Take the next cube until there are none left, so threads with light cubes take more of them.
+					 */
+					Search search = searches.get();
+					int solutions = 0;
+					Cube cube;
+					while ( (cube = queue.take()) != null )
+					{
+						solutions += search.solutions(cube);
+					}
+					if ( Rubiks.PRINT_SOLUTION )
+					{
+						paths.addAll(search.getPaths());
+						search.clearPaths();
+					}
+					return solutions;
+				}
+			}));
+		}
+		return results;
+	}
+	/**
+	 * Solves a work unit on all the threads. When jobs are needed, by an idle thread or another slave,
+	 * the next thread that checks splits its search and adds the jobs split off to the work unit.
+	 *
+	 * @param unit
+	 * 		The work to solve.
+	 * @return the total number of solutions found, including the ones in the jobs lent.
+	 */
+	public int solve(final WorkUnit unit) throws InterruptedException, ExecutionException
+	{
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for ( int i = 0; i < threads; i++ )
+		{
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws InterruptedException
+				{
+					Search search = searches.get();
+					Cube cube;
+					while ( (cube = unit.take()) != null )
+					{
+						search.reset(cube);
+						while ( !search.step(STEP) )
+						{
+							if ( unit.splitRequest )
+							{
+								unit.splitRequest = false;
+								Cube[] split = search.split();
+								if ( split != null ) unit.add(split);
+							}
+						}
+						unit.done(search.getSolutions(), search.getPaths());
+						if ( Rubiks.PRINT_SOLUTION ) search.clearPaths();
+					}
+					return 0;
+				}
+			}));
+		}
+		collect(results);
+		return unit.getSolutions();
+	}
+	/**
+	 * Waits for the threads started by start().
+	 *
+	 * @param results
+	 * 		The results returned by start().
+	 * @return the total number of solutions found.
+	 */
+	public static int collect(List<Future<Integer>> results) throws InterruptedException, ExecutionException
+	{
+		int solutions = 0;
+		for ( Future<Integer> result : results )
+		{
+			solutions += result.get();
+		}
+		return solutions;
+	}
+	/**
+	 * Returns if the threads started by start() are finished, without waiting for them.
+	 *
+	 * @param results
+	 * 		The results returned by start().
+	 * @return true if all the threads are finished.
+	 */
+	public static boolean isDone(List<Future<Integer>> results)
+	{
+		for ( Future<Integer> result : results )
+		{
+			if ( !result.isDone() ) return false;
+		}
+		return true;
+	}
+	/**
+	 * Creates a task generating the children of a range of cubes, using the cache of the thread running it.
+	 *
+	 * @param parents
+	 * 		The cubes.
+	 * @param from
+	 * 		Index of the first cube.
+	 * @param to
+	 * 		Index after the last cube.
+	 * @return the task, returning the children in the order of the cubes.
+	 */
+	private Callable<Cube[]> expansion(final Cube[] parents, final int from, final int to)
+	{
+		return new Callable<Cube[]>() {
+			@Override
+			public Cube[] call()
+			{
+				if ( from >= to ) return new Cube[0];
+				CubeCache cache = searches.get().getCache();
+				int moves = parents[from].getMoves();
+				Cube[] children = new Cube[(to - from) * moves];
+				for ( int i = from; i < to; i++ )
+				{
+					System.arraycopy(parents[i].generateChildren(cache), 0, children, (i - from) * moves, moves);
+				}
+				return children;
+			}
+		};
+	}
+	/**
+	 * Generates the children of all the given cubes, split over all the threads.
+	 *
+	 * @param parents
+	 * 		The cubes.
+	 * @return the children, in the order of the cubes.
+	 */
+	public Cube[] expand(Cube[] parents) throws InterruptedException, ExecutionException
+	{
+		int moves = parents[0].getMoves();
+		List<Future<Cube[]>> parts = new ArrayList<Future<Cube[]>>();
+		for ( int i = 0; i < threads; i++ )
+		{
+			parts.add(executor.submit(expansion(parents, chunkStart(parents.length, threads, i), chunkStart(parents.length, threads, i + 1))));
+		}
+		Cube[] children = new Cube[parents.length * moves];
+		int next = 0;
+		for ( Future<Cube[]> part : parts )
+		{
+			Cube[] c = part.get();
+			System.arraycopy(c, 0, children, next, c.length);
+			next += c.length;
+		}
+		return children;
+	}
+	/**
+	 * Returns where a chunk starts, when splitting a number of elements in equal chunks.
+	 *
+	 * @param length
+	 * 		The number of elements.
+	 * @param chunks
+	 * 		The number of chunks.
+	 * @param chunk
+	 * 		The chunk ( 0 <= chunk <= chunks ).
+	 * @return the index of the first element of the chunk.
+	 */
+	static int chunkStart(int length, int chunks, int chunk)
+	{
+		return (int) ((long) length * chunk / chunks);
+	}
+	/**
+	 * Returns and forgets the twists of the solutions found.
+	 * Only recorded if Rubiks.PRINT_SOLUTION is set.
+	 *
+	 * @return the twists of each solution found.
+	 */
+	public int[][] takePaths()
+	{
+		int[][] result = paths.toArray(new int[0][]);
+		paths.clear();
+		return result;
+	}
+	/**
+	 * Stops the threads.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+}
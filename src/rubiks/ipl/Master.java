@@ -1,7 +1,15 @@
 package rubiks.ipl;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import ibis.ipl.*;
 
@@ -9,56 +17,118 @@ import ibis.ipl.*;
  * @author Vittorio Massaro
  * 
  * A master able to solve the Rubik's Cube puzzle.
- * The master creates new jobs, and distributes them in a balanced way among the slaves.
+ * The master creates the jobs of each bound in a queue. Each slave takes a small batch from the queue,
+ * and asks for the next one by sending its results, while the master's own threads take jobs from the same queue.
+ * Each node first gets the jobs of the subtrees it solved in the previous bound (see AffinityQueue).
+ * A slave always has a second batch waiting, so it never waits for the master between two batches.
+ * When the queue is empty, the master answers with an empty batch, and the slave steals work from the other slaves.
+ * The thread of the master only sends and receives: its own jobs are solved by the threads of LocalSolver,
+ * so results are answered at once, even while its threads solve the last jobs of a bound.
+ *
+ * The first bounds are solved by the master alone while the slaves say hello, as they take less time than forming the pool.
+ * After them, the master never waits for the pool: each bound is solved with the slaves that said hello so far, if any.
+ * Slaves may say hello at any time: a slave joining during a bound gets its batches at once, and jobs from the next bound on.
+ * A slave may also be the sub-master of a site (see SubMaster), which says hello with the cores of its whole site.
+ *
+ * When a slave dies or leaves, the batches it did not answer yet are put back in the queue and given to the others,
+ * and anything it still sends is ignored, so no job is counted twice.
  */
-public class Master{
-	/*
-	 * The INITIAL_TWISTS specify how many different sizes of cubes there will
-	 * be in the initial work queue for each bound.
-	 */
-	static final int INITIAL_TWISTS = 3;
+public class Master implements Pool.Listener {
 	/*
 	 * Jobs that needs less than SEQUENTIAL_THRESHOLD twists are not even sent to slaves.
 	 */
 	static final int SEQUENTIAL_THRESHOLD = 2;
+	/*
+	 * Number of jobs generated per core of the pool. Each batch has a job per core of its slave,
+	 * so a bound ends at most about a batch after the queue is empty.
+	 */
+	static final int JOBS_PER_CORE = 8;
+	/*
+	 * Bounds up to LOCAL_BOUNDS are solved by the threads of the master alone:
+	 * they take less time than the slaves take to say hello, or than sending them their jobs.
+	 */
+	static final int LOCAL_BOUNDS = 5;
+	/*
+	 * Number of batches a slave gets at the start of a bound: the one it solves, and the ones waiting.
+	 */
+	static final int BATCHES_IN_FLIGHT = 2;
+	/*
+	 * Maximum time the master waits for a message before checking for lost slaves, in milliseconds.
+	 */
+	static final long LOST_CHECK = 1000;
+	/*
+	 * Maximum time the master waits for a message while no batch is out, before checking if its threads took the last jobs.
+	 */
+	static final long QUEUE_CHECK = 10;
+	/*
+	 * The index of the master in the queue of jobs.
+	 */
+	static final int MASTER = -1;
 	/*
 	 * Ibis global parameters.
 	 */
 	Ibis myIbis;
 	PortType masterToSlavePortType;
 	PortType slaveToMasterPortType;
+	/*
+	 * The ibises of the pool, and the ones lost that are not handled yet.
+	 */
+	Pool pool;
+	ConcurrentLinkedQueue<IbisIdentifier> lostIbises = new ConcurrentLinkedQueue<IbisIdentifier>();
 	/*
 	 * The cube to solve.
 	 */
 	Cube cube;
 	/*
-	 * The cache used.
+	 * The threads solving the local jobs.
 	 */
-	CubeCache cache;
+	LocalSolver solver;
 	/*
 	 * Receive and send ports.
 	 */
 	ReceivePort receive = null;
-	LinkedList<SendPort> sendPorts = new LinkedList<SendPort>();
+	ArrayList<SendPort> sendPorts = new ArrayList<SendPort>();
+	/*
+	 * The index of each slave in sendPorts and cores, and the slave of each index.
+	 */
+	Map<IbisIdentifier, Integer> slaveIndex = new HashMap<IbisIdentifier, Integer>();
+	List<IbisIdentifier> slaves = new ArrayList<IbisIdentifier>();
+	/*
+	 * The batches sent to each slave whose result has not arrived yet, oldest first.
+	 */
+	List<LinkedList<Cube[]>> sent = new ArrayList<LinkedList<Cube[]>>();
 	/*
-	 * jobs represents the jobs stack.
-	 * auxQueue is an auxiliary queue used for the job creation and distribution.
-	 * It's declared as a field in order to avoid to allocate it for each iteration.
+	 * The jobs of the current bound. The index of each slave is its index in sendPorts, the master's is MASTER.
 	 */
-	LinkedList<Cube> jobs = new LinkedList<Cube>();
-	LinkedList<Cube> auxQueue = new LinkedList<Cube>();
+	AffinityQueue queue;
 	/*
 	 * Variables used during the solution of the cube.
-	 * They indicate the current bound, the number of solution found and the number
-	 * of jobs that slaves that are idle. 
+	 * They indicate the current bound, the number of solution found, the number
+	 * of slaves that are ready, counting the ones of the sub-masters, and the number of batches sent whose result has not arrived yet.
 	 */
 	int bound = 0;
 	int solutions = 0;
 	int slavesAvailable = 0;
+	int outstanding = 0;
+	/*
+	 * True while the bounds are solved with the slaves, so a slave saying hello gets batches at once.
+	 */
+	boolean solving = false;
 	/*
-	 * The number of slaves in the pool.
+	 * The twists of the solutions found by the slaves, only if the solutions are printed.
+	 */
+	List<int[]> solutionPaths = new ArrayList<int[]>();
+	/*
+	 * The number of slaves waited for before quitting, so all of them are told to quit.
 	 */
 	int slavesN;
+	/*
+	 * The number of cores and nodes of each slave (in the order of sendPorts), and the cores of the whole pool.
+	 * A sub-master is a slave offering the cores of all the nodes of its site.
+	 */
+	List<Integer> cores = new ArrayList<Integer>();
+	List<Integer> nodes = new ArrayList<Integer>();
+	int totalCores;
 	/**
 	 * Creates a new Master.
 	 * 
@@ -70,24 +140,56 @@ public class Master{
 	 * 		The master-to-slave port type.
 	 * @param slaveToMaster
 	 * 		The slave-to-master port type.
+	 * @param pool
+	 * 		The ibises of the pool, as told by the registry.
+	 * @param slaves
+	 * 		The number of slaves of the pool, waited for before quitting, 0 in an open pool.
+	 * @param threads
+	 * 		The number of threads solving the local jobs, 0 for one per core.
+	 * @param table
+	 * 		The transposition table of this node, null for none.
 	 */
-	public Master(Ibis ibis, Cube cube, PortType masterToSlave, PortType slaveToMaster)
+	public Master(Ibis ibis, Cube cube, PortType masterToSlave, PortType slaveToMaster, Pool pool, int slaves, int threads, TranspositionTable table)
 	{
 		/*
 		 * Copy the parameters in the object fields.
 		 */
 		this.myIbis = ibis;
+		this.pool = pool;
 		this.cube = cube;
 		this.masterToSlavePortType = masterToSlave;
 		this.slaveToMasterPortType = slaveToMaster;
+		this.solver = new LocalSolver(threads, cube.getSize(), table);
+		this.totalCores = solver.getThreads();
 		/*
-		 * Initialization of the local cache.
+		 * Track the twists done on the cube, so the jobs know how they were generated:
+		 * the slaves get a job as these twists, and do them on their own copy of the cube.
 		 */
-		this.cache = new CubeCache(cube.getSize());
-		/*
-		 * The number of slaves is the size of the pool, minus the master.
-		 */
-		slavesN = myIbis.registry().getPoolSize() - 1;
+		cube.setPath(new int[0]);
+		this.slavesN = slaves;
+		this.queue = new AffinityQueue();
+		pool.addListener(this);
+	}
+	/**
+	 * Called by the registry when an ibis joins the pool. A slave is only used once it says hello.
+	 *
+	 * @param ibis
+	 * 		The ibis.
+	 */
+	@Override
+	public void joined(IbisIdentifier ibis)
+	{
+	}
+	/**
+	 * Called by the registry when an ibis of the pool is lost. It is handled by the thread of the master.
+	 *
+	 * @param ibis
+	 * 		The ibis lost.
+	 */
+	@Override
+	public void lost(IbisIdentifier ibis)
+	{
+		lostIbises.add(ibis);
 	}
 	public void Run()
 	{
@@ -106,23 +208,24 @@ public class Master{
 		}
 		
 		/*
-		 * Wait for all the saves to be ready, and initialize send ports.
-		 */
-		waitForSlaves();
-		
-		/*
-		 * Solve and take the duration time.
+		 * Solve and take the duration time. The slaves are used as they say hello, they are never waited for.
 		 */
 		long start = System.currentTimeMillis();
 		this.Solve();
+		solving = false;
 		long end = System.currentTimeMillis();
 		/*
 		 * Print the duration timer.
 		 */
 		System.err.println("Solving cube took " + (end - start) + " milliseconds");
 		/*
-		 * Quit slaves.
+		 * Stop the local threads.
 		 */
+		solver.shutdown();
+		/*
+		 * Quit slaves, after waiting for the ones that did not say hello yet.
+		 */
+		waitForSlaves();
 		quitSlaves();
 		/*
 		 * Close the send and receive ports.
@@ -148,6 +251,8 @@ public class Master{
             System.out.print(" 1");
     		System.out.println();
             System.out.println("Solving cube possible in " + this.solutions + " ways of " + bound + " steps");	
+            if ( Rubiks.PRINT_SOLUTION ) solutionPaths.add(cube.getPath());
+            printSolutions();
             return;
 		}
 		while ( this.solutions == 0 )
@@ -158,90 +263,121 @@ public class Master{
 			this.bound ++;
             System.out.print(" " + bound);
             /*
-             * Set the bound and put the new cube in the jobs queue.
+             * Set the bound.
              */
             cube.setBound(bound);
-            jobs.add(cube);
-            /*
-             * Generate jobs.
-             */
-            generateJobs();
-            /*
-             * Distribute Jobs
-             */
-            distributeJobs();
-            /*
-             * Solve.
-             */
-            while ( !jobs.isEmpty() )
+            try
             {
-            	/*
-            	 * Solve your jobs.
-            	 */
-            	this.solutions += solutions(jobs.pop(), cache);
-            }
-            /*
-             * Wait for all the slaves to terminate their jobs.
-             */
-            while ( this.slavesAvailable < this.slavesN )
-            {
-            	try
+            	if ( bound <= LOCAL_BOUNDS )
             	{
             		/*
-            		 * Of course, the slaves will also send the number of solution they found.
+            		 * Small bounds: solve on the local threads only.
             		 */
-	            	ReadMessage result = receive.receive();
-        			this.solutions += result.readInt();
-        			this.slavesAvailable++;
-	            	result.finish();
+            		this.solutions += solver.solve(generateJobs(new Cube[] { cube }));
+            		continue;
             	}
-				catch (IOException e1) 
-				{
-					System.err.println("During result.readObject() or receive.receive(): " + e1.getMessage());
-				}
+            	/*
+            	 * Take the slaves that said hello meanwhile, so the jobs are generated for their cores too.
+            	 * The ones saying hello from now on get batches at once.
+            	 */
+            	receiveHellos();
+            	solving = true;
+            	/*
+            	 * Generate the jobs and solve them, then add the solutions of the local threads
+            	 * to the ones of the slaves, which distribute() added meanwhile.
+            	 */
+            	int local = distribute(generateJobs(new Cube[] { cube }));
+            	this.solutions += local;
+            }
+            catch (InterruptedException e)
+            {
+            	System.err.println("Solving the jobs in master: " + e.getMessage());
+            	return;
+            }
+            catch (ExecutionException e)
+            {
+            	System.err.println("Solving the jobs in master: " + e.getMessage());
+            	return;
             }
 		}
 		System.out.println();
         System.out.println("Solving cube possible in " + this.solutions + " ways of " + bound + " steps");	
+        if ( Rubiks.PRINT_SOLUTION ) solutionPaths.addAll(Arrays.asList(solver.takePaths()));
+        printSolutions();
 	}
 	/**
-     * Recursive function to find a solution for a given cube. Only searches to
-     * the bound set in the cube object.
-     * Some cubes are sent so salves.
-     * 
-     * @param cube
-     *            cube to solve
-     * @param cache
-     *            cache of cubes used for new cube objects
-     * @return the number of solutions found locally.
-     */
-	private static int solutions(Cube cube, CubeCache cache) {
-        if (cube.isSolved()) {
-            return 1;
-        }
-
-        if (cube.getTwists() >= cube.getBound()) {
-            return 0;
-        }
-
-        // generate all possible cubes from this one by twisting it in
-        // every possible way. Gets new objects from the cache
-        Cube[] children = cube.generateChildren(cache);
-
-        int result = 0;
-
-        for (Cube child : children) {
-            // recursion step
-            int childSolutions = solutions(child, cache);
-            if (childSolutions > 0) {
-                result += childSolutions;
-            }
-            // put child object in cache
-            cache.put(child);
-        }
-
-        return result;
-    }
+	 * Solves jobs on the slaves and the local threads, which all take them from the queue.
+	 * The solutions found by the slaves are added to solutions, the ones found by the local threads are returned.
+	 *
+	 * @param jobs
+	 * 		The jobs, all with the same bound.
+	 * @return the number of solutions found by the local threads.
+	 */
+	int distribute(Cube[] jobs) throws InterruptedException, ExecutionException
+	{
+		queue.fill(jobs);
+		/*
+		 * Give each slave its first batches, then start solving from the same queue, on all the local cores.
+		 */
+		for ( int k = 0; k < BATCHES_IN_FLIGHT; k++ )
+		{
+			for ( int j = 0; j < sendPorts.size(); j++ )
+			{
+				sendBatch(j);
+			}
+		}
+		List<Future<Integer>> local = solver.start(queue.source(MASTER), solver.getThreads());
+		/*
+		 * Wait for all the slaves to terminate their jobs, sending a new batch for each result.
+		 * While jobs are left, slaves saying hello are given some too.
+		 * This thread only communicates: it keeps receiving until the local threads finished their last jobs,
+		 * so hellos and lost slaves are handled while they solve.
+		 */
+		while ( this.outstanding > 0 || !queue.isEmpty() || !LocalSolver.isDone(local) )
+		{
+			/*
+			 * The jobs of lost slaves are solved by the others, including the local threads.
+			 */
+			if ( requeueLost() )
+			{
+				local.addAll(solver.start(queue.source(MASTER), solver.getThreads()));
+				continue;
+			}
+			try
+			{
+				/*
+				 * When no batch is out, only the local threads are left to take and solve the last jobs.
+				 */
+				handle(receive.receive(this.outstanding > 0 ? LOST_CHECK : QUEUE_CHECK));
+			}
+			catch (ReceiveTimedOutException e)
+			{
+				/*
+				 * Check for lost slaves again.
+				 */
+			}
+			catch (IOException e1) 
+			{
+				System.err.println("During result.readInt() or receive.receive(): " + e1.getMessage());
+			}
+		}
+		/*
+		 * And the results of the local threads, which are all finished.
+		 */
+		return LocalSolver.collect(local);
+	}
+	/**
+	 * Prints the twists of the solutions found, if the solutions are printed.
+	 * They are printed on standard error, so the standard output stays comparable.
+	 */
+	private void printSolutions()
+	{
+		if ( !Rubiks.PRINT_SOLUTION ) return;
+		for ( int[] path : solutionPaths )
+		{
+			System.err.println("Solution: " + Cube.movesToString(path, cube.getSize()));
+		}
+	}
 	/**
 	 * Sends the given cube array to the indicated port.
 	 * 
@@ -259,17 +395,13 @@ public class Master{
     		 */
     		WriteMessage writeMessage = sendPort.newMessage();
     		/*
-    		 * Write the cube to send in the message.
+    		 * Write the twists of the jobs to send in the message.
     		 */
-    		writeMessage.writeObject(cubes);
+    		Messages.writeJobs(writeMessage, cubes);
     		/*
     		 * Send the message.
     		 */
     		writeMessage.finish();
-    		/*
-    		 * Decrease the number of idle slaves.
-    		 */
-    		this.slavesAvailable--;
 		}
 		catch (IOException e)
 		{
@@ -278,78 +410,252 @@ public class Master{
 		}
 	}
 	/**
-	 * This method waits for all the slaves to send a message to the master.
+	 * Handles the messages already received, without waiting for more.
+	 * Between two bounds, these are the hellos of new slaves.
+	 */
+	void receiveHellos()
+	{
+		try
+		{
+			ReadMessage message;
+			while ( (message = receive.poll()) != null )
+			{
+				handle(message);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to receive the hellos: " + e.getMessage());
+		}
+	}
+	/**
+	 * This method waits for all the slaves of the pool to send a message to the master.
 	 * The send ports needed for the communication are allocated.
 	 */
 	private void waitForSlaves()
 	{
-		
-		while ( this.slavesAvailable < slavesN)
+		/*
+		 * Slaves lost before saying hello are not waited for.
+		 */
+		while ( this.slavesAvailable + lostBeforeHello() < slavesN)
 		{
 			try
         	{
-				/*
-				 * Read the message.
-				 */
-            	ReadMessage readMessage = receive.receive();
-            	/*
-            	 * Read the object.
-            	 */
-            	ReceivePortIdentifier receivePortID = (ReceivePortIdentifier) readMessage.readObject();
-            	/*
-            	 * Create a new SendPort for the given slave.
-            	 */
-            	SendPort sendPort = myIbis.createSendPort(masterToSlavePortType);
-            	/*
-            	 * Connect it.
-            	 */
-            	sendPort.connect(receivePortID);
-            	/*
-            	 * Put it in the list.
-            	 */
-            	this.sendPorts.add(sendPort);
-            	/*
-            	 * Indicate that the message can be re-used.
-            	 */
-            	readMessage.finish();
-            	/*
-            	 * Increase number of idle slaves.
-            	 */
-            	this.slavesAvailable++;
+            	handle(receive.receive(LOST_CHECK));
         	}
-        	catch (ClassNotFoundException e1) 
+			catch (ReceiveTimedOutException e)
 			{
-				System.err.println("During result.readObject(): " + e1.getMessage());
-			} 
+				/*
+				 * Check for lost slaves again.
+				 */
+			}
 			catch (IOException e1) 
 			{
-				System.err.println("During result.readObject() or receive.receive(): " + e1.getMessage());
+				System.err.println("During result.readInt() or receive.receive(): " + e1.getMessage());
 			}
 		}
 	}
+	/**
+	 * Handles a message of a slave: the hello of a new slave, or the result of a batch.
+	 *
+	 * @param message
+	 * 		The message.
+	 */
+	void handle(ReadMessage message) throws IOException
+	{
+		IbisIdentifier origin = message.origin().ibisIdentifier();
+		int type = message.readInt();
+		if ( type == Messages.HELLO )
+		{
+			/*
+			 * Read the number of cores and nodes of the slave.
+			 */
+			int slaveCores = message.readInt();
+			int slaveNodes = message.readInt();
+			/*
+			 * Indicate that the message can be re-used.
+			 */
+			message.finish();
+			if ( !pool.isLost(origin) ) addSlave(origin, slaveCores, slaveNodes);
+			return;
+		}
+		Integer index = slaveIndex.get(origin);
+		if ( index == null )
+		{
+			/*
+			 * Not from a slave that said hello, so there is nothing it could report.
+			 */
+			System.err.println("Ignoring a message of " + origin + ", which did not say hello");
+			message.finish();
+			return;
+		}
+		int slave = index;
+		if ( type == Messages.CORES )
+		{
+			/*
+			 * A sub-master whose site changed: its next batches and the jobs of the next bound follow its cores.
+			 */
+			int slaveCores = message.readInt();
+			int slaveNodes = message.readInt();
+			message.finish();
+			if ( pool.isLost(origin) ) return;
+			this.totalCores += slaveCores - cores.get(slave);
+			this.slavesAvailable += slaveNodes - nodes.get(slave);
+			cores.set(slave, slaveCores);
+			nodes.set(slave, slaveNodes);
+			return;
+		}
+		if ( pool.isLost(origin) )
+		{
+			/*
+			 * Its batches are given to the others.
+			 */
+			message.finish();
+			return;
+		}
+		/*
+		 * Of course, the slaves will also send the number of solution they found.
+		 */
+		this.solutions += message.readInt();
+		if ( Rubiks.PRINT_SOLUTION )
+		{
+			/*
+			 * And the twists of these solutions.
+			 */
+			solutionPaths.addAll(Arrays.asList(Messages.readPaths(message)));
+		}
+		this.outstanding--;
+		sent.get(slave).poll();
+		message.finish();
+		sendBatch(slave);
+	}
+	/**
+	 * Allocates the send port of a slave which said hello, and sends it the cube to solve.
+	 * During a bound, the slave also gets its first batches.
+	 *
+	 * @param slave
+	 * 		The slave.
+	 * @param slaveCores
+	 * 		The number of cores of the slave.
+	 * @param slaveNodes
+	 * 		The number of nodes of the slave, more than one for a sub-master.
+	 */
+	void addSlave(IbisIdentifier slave, int slaveCores, int slaveNodes) throws IOException
+	{
+		/*
+		 * Create a new SendPort for the given slave.
+		 */
+		SendPort sendPort = myIbis.createSendPort(masterToSlavePortType);
+		/*
+		 * Connect it to the receive port of the slave.
+		 */
+		sendPort.connect(slave, "master-to-slave");
+		/*
+		 * Send the cube to solve, once: the jobs are sent as twists done on it.
+		 */
+		WriteMessage root = sendPort.newMessage();
+		Messages.writeCubes(root, new Cube[] { cube });
+		root.finish();
+		/*
+		 * Put it in the lists.
+		 */
+		int index = this.sendPorts.size();
+		this.slaveIndex.put(slave, index);
+		this.slaves.add(slave);
+		this.sendPorts.add(sendPort);
+		this.sent.add(new LinkedList<Cube[]>());
+		this.cores.add(slaveCores);
+		this.nodes.add(slaveNodes);
+		this.totalCores += slaveCores;
+		/*
+		 * Increase number of idle slaves.
+		 */
+		this.slavesAvailable += slaveNodes;
+		if ( !solving ) return;
+		System.err.println("Slave " + slave + " joined with " + slaveCores + " cores");
+		for ( int k = 0; k < BATCHES_IN_FLIGHT; k++ )
+		{
+			sendBatch(index);
+		}
+	}
 	/**
 	 * This method quits all the slaves, sending them a null message.
+	 * Slaves which said hello since the last bound are quit too.
+	 */
+	void quitSlaves()
+	{
+		receiveHellos();
+		for ( int j = 0; j < sendPorts.size(); j++ )
+		{
+			if ( !pool.isLost(slaves.get(j)) ) send(sendPorts.get(j), null);
+		}
+	}
+	/**
+	 * Returns the number of slaves lost before saying hello to the master.
+	 *
+	 * @return the number of slaves.
 	 */
-	private void quitSlaves()
+	private int lostBeforeHello()
 	{
-		for ( SendPort sendPort : sendPorts)
+		int result = 0;
+		for ( IbisIdentifier ibis : pool.getLost() )
 		{
-			send(sendPort, null);
+			if ( !ibis.equals(myIbis.identifier()) && !slaveIndex.containsKey(ibis) ) result++;
 		}
+		return result;
+	}
+	/**
+	 * Puts back in the queue the batches of the slaves lost since the last call, whose results will never arrive,
+	 * and gives new batches to the slaves which had none, as they may be stealing from each other.
+	 *
+	 * @return true if a slave was lost.
+	 */
+	boolean requeueLost()
+	{
+		boolean lostSlave = false;
+		IbisIdentifier ibis;
+		while ( (ibis = lostIbises.poll()) != null )
+		{
+			Integer slave = slaveIndex.get(ibis);
+			/*
+			 * The master itself at the end, or a slave lost before saying hello.
+			 */
+			if ( slave == null ) continue;
+			lostSlave = true;
+			int jobs = 0;
+			Cube[] batch;
+			while ( (batch = sent.get(slave).poll()) != null )
+			{
+				queue.putBack(batch);
+				jobs += batch.length;
+				this.outstanding--;
+			}
+			queue.forget(slave);
+			this.totalCores -= cores.get(slave);
+			System.err.println("Slave " + ibis + " lost, its " + jobs + " jobs in progress are given to the others");
+		}
+		if ( lostSlave )
+		{
+			for ( int j = 0; j < sendPorts.size(); j++ )
+			{
+				if ( sent.get(j).isEmpty() ) sendBatch(j);
+			}
+		}
+		return lostSlave;
 	}
 	/**
 	 * This method closed both send and receive ports.
 	 */
-	private void closePorts()
+	void closePorts()
 	{
 		try 
 		{
 			/*
 			 * Close the sending ports.
 			 */
-			for ( SendPort port : sendPorts)
+			for ( int j = 0; j < sendPorts.size(); j++ )
 			{
-				port.close();
+				if ( !pool.isLost(slaves.get(j)) ) sendPorts.get(j).close();
 			}
 			/*
 			 * Close receive port.
@@ -363,86 +669,41 @@ public class Master{
 		}
 	}
 	/**
-	 * Generates the jobs for the current iteration.
+	 * Generates the jobs for the current iteration from some cubes, all twisted the same number of times.
+	 * Each step twists all the cubes of the previous one, in parallel on all the local cores,
+	 * until there are JOBS_PER_CORE cubes per core of the pool.
+	 *
+	 * @param jobs
+	 * 		The cubes, with the bound set.
+	 * @return the jobs.
 	 */
-	private void generateJobs()
+	Cube[] generateJobs(Cube[] jobs) throws InterruptedException, ExecutionException
 	{
-		int poolSize = slavesN + 1;
-		/*
-		 * I want to have in the job queue cubes with INITIAL_TWISTS different number of twists.
-		 * Of course, if the bound is less than that number, I can't execute more twists than the bound value.
-		 */
-		int initial_twists = INITIAL_TWISTS;
-        for(int i = 0; i <  Math.min(initial_twists, this.bound); i++)
-        {
-        	/*
-        	 * If the jobs can be distributed in balanced way, stop.
-        	 */
-        	if ( jobs.size() % poolSize == 0) break;
-        	/*
-        	 * Make another step in jobs that can't be distributed in balanced way.
-        	 */
-        	int modulo = jobs.size() % poolSize;
-        	for ( int j = 0; j < modulo; j++)
-        	{
-        		auxQueue.push(jobs.pollLast());
-        	}
-        	while (! auxQueue.isEmpty())
-        	{
-            	Cube c = auxQueue.pop();
-            	Cube[] child = c.generateChildren(cache);
-            	for ( Cube ch : child)
-            	{
-            		jobs.add(ch);
-            	}
-        	}
-        	/*
-        	 * I want at least INITIAL_TWISTS different twists in my jobs queue.
-        	 * So, if all the jobs are going to be twisted again, I'll need an extra iteration.
-        	 */
-        	if ( jobs.size()  < poolSize ) initial_twists++;
-        }
+		while ( jobs.length < totalCores * JOBS_PER_CORE && jobs[0].getTwists() < jobs[0].getBound() )
+		{
+			jobs = solver.expand(jobs);
+		}
+		return jobs;
 	}
 	/**
-	 * Sends jobs to the slaves
+	 * Sends the next batch of jobs to a slave, a job per core of the slave.
+	 * If the queue is empty an empty batch is sent, which is not waited for.
+	 *
+	 * @param slave
+	 * 		The index of the slave.
 	 */
-	private void distributeJobs()
+	private void sendBatch(int slave)
 	{
-		/*
-		 * If the first (so the heaviest) job needs less then SEQUENTIAL_THRESHOLD twists, jobs are not distributed.
-		 */
-		//if ( jobs.peek().getBound() - jobs.peek().getTwists() < SEQUENTIAL_THRESHOLD ) return;			
-		
-		int maxJob = (int)Math.ceil(jobs.size()/(slavesN+1));
-		Cube[][] distributedJobs = new Cube[slavesN][maxJob];
-		/*
-		 * Jobs are distributed in a round robin fashion (this is necessary, since the jobs tend to be less heavy
-		 * while going to the end of the queue.
-		 */
-		for (int i = 0; i < maxJob; i++)
-		{
-			auxQueue.add(jobs.pop());
-			for ( int j = 0; j < slavesN; j++ )
-			{
-				if ( !jobs.isEmpty())
-				{
-					distributedJobs[j][i] = jobs.pop();
-				}
-			}
-		}
-		/*
-		 * Jobs are sent.
-		 */
-		for ( int i = 0; i < slavesN; i++)
+		if ( pool.isLost(slaves.get(slave)) ) return;
+		Cube[] batch = queue.take(slave, cores.get(slave));
+		if ( batch.length > 0 )
 		{
-			send(sendPorts.get(i), distributedJobs[i]);
-		}
-		/*
-		 * Jobs that are going to be executed by the master are put in the jobs queue.
-		 */
-		while ( !auxQueue.isEmpty() )
-		{
-			jobs.add(auxQueue.pop());
+			/*
+			 * Recorded before sending, so it is given to the others if the slave is lost meanwhile.
+			 */
+			sent.get(slave).add(batch);
+			this.outstanding++;
 		}
+		send(sendPorts.get(slave), batch);
 	}
 }
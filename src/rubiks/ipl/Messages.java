@@ -0,0 +1,217 @@
+package rubiks.ipl;
+
+import java.io.IOException;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * Writes jobs and solutions in messages as plain data, so the ports need no object serialization.
+ * The cube to solve is sent once to every slave, packed (see Cube.pack()).
+ * A job is only the twists from that cube to it, which the receiver does again on its own copy of the cube:
+ * a batch is its number of jobs and their bound, then one byte array with the number of twists and the twists of each job.
+ * Solutions are sent as the length and the twists of each path.
+ * A message of a slave to the master starts with its type, as a slave may say hello at any time.
+ */
+public class Messages {
+	/*
+	 * Types of the messages of a slave to the master: a new slave with its number of cores and nodes, the result of a batch,
+	 * or the new number of cores and nodes of a sub-master whose site changed.
+	 */
+	static final int HELLO = 0;
+	static final int RESULT = 1;
+	static final int CORES = 2;
+	/*
+	 * Number of cubes sent instead of a batch, to say quit.
+	 */
+	static final int QUIT = -1;
+	/**
+	 * Writes cubes in a message.
+	 *
+	 * @param message
+	 * 		The message.
+	 * @param cubes
+	 * 		The cubes, null elements are skipped. null to say quit.
+	 */
+	public static void writeCubes(WriteMessage message, Cube[] cubes) throws IOException
+	{
+		if ( cubes == null )
+		{
+			message.writeInt(QUIT);
+			return;
+		}
+		int count = 0;
+		int size = 0;
+		for ( Cube cube : cubes )
+		{
+			if ( cube == null ) continue;
+			count++;
+			size = cube.getSize();
+		}
+		message.writeInt(count);
+		if ( count == 0 ) return;
+		message.writeInt(size);
+		int packed = Cube.packedSize(size);
+		byte[] buffer = new byte[count * packed];
+		int[][] paths = new int[count][];
+		int i = 0;
+		for ( Cube cube : cubes )
+		{
+			if ( cube == null ) continue;
+			cube.pack(buffer, i * packed);
+			paths[i++] = cube.getPath();
+		}
+		message.writeArray(buffer);
+		if ( Rubiks.PRINT_SOLUTION ) writePaths(message, paths);
+	}
+	/**
+	 * Reads the cubes written by writeCubes().
+	 *
+	 * @param message
+	 * 		The message.
+	 * @return the cubes, or null if the message says quit.
+	 */
+	public static Cube[] readCubes(ReadMessage message) throws IOException
+	{
+		int count = message.readInt();
+		if ( count == QUIT ) return null;
+		Cube[] cubes = new Cube[count];
+		if ( count == 0 ) return cubes;
+		int size = message.readInt();
+		int packed = Cube.packedSize(size);
+		byte[] buffer = new byte[count * packed];
+		message.readArray(buffer);
+		for ( int i = 0; i < count; i++ )
+		{
+			cubes[i] = new Cube(size);
+			cubes[i].unpack(buffer, i * packed);
+		}
+		if ( Rubiks.PRINT_SOLUTION )
+		{
+			int[][] paths = readPaths(message);
+			for ( int i = 0; i < count; i++ )
+			{
+				cubes[i].setPath(paths[i]);
+			}
+		}
+		return cubes;
+	}
+	/**
+	 * Writes jobs in a message, as the twists done on the cube to solve to get them.
+	 * The jobs must have their twists tracked (see Cube.setPath()), and all have the same bound.
+	 *
+	 * @param message
+	 * 		The message.
+	 * @param jobs
+	 * 		The jobs, null elements are skipped. null to say quit.
+	 */
+	public static void writeJobs(WriteMessage message, Cube[] jobs) throws IOException
+	{
+		if ( jobs == null )
+		{
+			message.writeInt(QUIT);
+			return;
+		}
+		int count = 0;
+		int length = 0;
+		int bound = 0;
+		for ( Cube job : jobs )
+		{
+			if ( job == null ) continue;
+			count++;
+			length += 1 + job.getPath().length;
+			bound = job.getBound();
+		}
+		message.writeInt(count);
+		if ( count == 0 ) return;
+		message.writeInt(bound);
+		/*
+		 * A cube has less than 256 twists, and a job less than 256 twists done.
+		 */
+		byte[] twists = new byte[length];
+		int next = 0;
+		for ( Cube job : jobs )
+		{
+			if ( job == null ) continue;
+			int[] path = job.getPath();
+			twists[next++] = (byte) path.length;
+			for ( int move : path )
+			{
+				twists[next++] = (byte) move;
+			}
+		}
+		message.writeInt(length);
+		message.writeArray(twists);
+	}
+	/**
+	 * Reads the jobs written by writeJobs(), doing their twists on copies of the cube to solve.
+	 *
+	 * @param message
+	 * 		The message.
+	 * @param root
+	 * 		The cube to solve.
+	 * @return the jobs, with their twists tracked, or null if the message says quit.
+	 */
+	public static Cube[] readJobs(ReadMessage message, Cube root) throws IOException
+	{
+		int count = message.readInt();
+		if ( count == QUIT ) return null;
+		Cube[] jobs = new Cube[count];
+		if ( count == 0 ) return jobs;
+		int bound = message.readInt();
+		byte[] twists = new byte[message.readInt()];
+		message.readArray(twists);
+		int next = 0;
+		for ( int i = 0; i < count; i++ )
+		{
+			int[] path = new int[twists[next++] & 0xff];
+			Cube job = new Cube(root);
+			for ( int j = 0; j < path.length; j++ )
+			{
+				path[j] = twists[next++] & 0xff;
+				job.twist(path[j]);
+			}
+			job.setBound(bound);
+			job.setPath(path);
+			jobs[i] = job;
+		}
+		return jobs;
+	}
+	/**
+	 * Writes the twists of solutions in a message.
+	 *
+	 * @param message
+	 * 		The message.
+	 * @param paths
+	 * 		The twists of each solution, null elements are sent as empty.
+	 */
+	public static void writePaths(WriteMessage message, int[][] paths) throws IOException
+	{
+		message.writeInt(paths.length);
+		for ( int[] path : paths )
+		{
+			int[] twists = path == null ? new int[0] : path;
+			message.writeInt(twists.length);
+			message.writeArray(twists);
+		}
+	}
+	/**
+	 * Reads the twists written by writePaths().
+	 *
+	 * @param message
+	 * 		The message.
+	 * @return the twists of each solution.
+	 */
+	public static int[][] readPaths(ReadMessage message) throws IOException
+	{
+		int[][] paths = new int[message.readInt()][];
+		for ( int i = 0; i < paths.length; i++ )
+		{
+			paths[i] = new int[message.readInt()];
+			message.readArray(paths[i]);
+		}
+		return paths;
+	}
+}
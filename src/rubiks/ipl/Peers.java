@@ -0,0 +1,410 @@
+package rubiks.ipl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+
+import ibis.ipl.*;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * The other slaves of the pool, to steal work from and to lend work to.
+ * An idle slave asks a random other slave (the victim) for work. The victim lends part of its work unit,
+ * split off the searches of its threads if needed, or answers that it has nothing to lend.
+ * The thief solves the jobs lent as a work unit of its own, and gives the result back to the victim,
+ * which only reports its own work unit when all its loans are given back.
+ * So the master knows a bound is finished when all the batches it sent are reported.
+ *
+ * Messages from the other slaves are received by a thread of their own, so the victim answers while its threads solve.
+ * Loans received are handed to the slave through its queue of events.
+ *
+ * Slaves that join the pool are stolen from as soon as they are told. With sub-masters, only the slaves of the same site are.
+ * When a thief is lost, the jobs lent to it are taken back and solved by the lender.
+ * When a victim is lost before answering, the thief gets an empty answer.
+ */
+public class Peers implements Runnable, Pool.Listener {
+	/*
+	 * Types of the messages between slaves.
+	 */
+	static final int REQUEST = 0;
+	static final int LOAN = 1;
+	static final int RETURN = 2;
+	/*
+	 * Maximum time a victim waits for its threads to split off jobs to lend, in milliseconds.
+	 */
+	static final long SPLIT_WAIT = 20;
+	/*
+	 * Maximum time to wait for the other slaves to disconnect when closing, in milliseconds.
+	 */
+	static final long CLOSE_WAIT = 1000;
+	/*
+	 * Ibis global parameters.
+	 */
+	Ibis myIbis;
+	PortType slaveToSlavePortType;
+	/*
+	 * The master, which is not a slave.
+	 */
+	IbisIdentifier master;
+	/*
+	 * The site of this slave, null if slaves of all sites steal from each other.
+	 */
+	String site;
+	/*
+	 * The other slaves, and the ports to send to them, connected the first time they are used.
+	 */
+	volatile IbisIdentifier[] peers = new IbisIdentifier[0];
+	Map<IbisIdentifier, SendPort> sendPorts = new HashMap<IbisIdentifier, SendPort>();
+	ReceivePort receive;
+	Random random = new Random();
+	/*
+	 * The work this slave is solving, which jobs are lent from, null if none.
+	 */
+	volatile WorkUnit current = null;
+	/*
+	 * The loans not given back yet of each thief, in the order they were lent, and the victim asked for work, if any.
+	 */
+	Map<IbisIdentifier, LinkedList<Loan>> lent = new HashMap<IbisIdentifier, LinkedList<Loan>>();
+	volatile IbisIdentifier asked = null;
+	/*
+	 * The cube to solve, which the twists of the jobs lent are done on.
+	 */
+	Cube root;
+	/*
+	 * The queue of events of the slave, where loans received are put.
+	 */
+	BlockingQueue<Object> events;
+	/**
+	 * A loan received from another slave, or lent to one.
+	 */
+	static class Loan {
+		IbisIdentifier lender;
+		Cube[] jobs;
+		/*
+		 * The work the jobs were lent from, only for the lender.
+		 */
+		WorkUnit unit;
+		Loan(IbisIdentifier lender, Cube[] jobs)
+		{
+			this.lender = lender;
+			this.jobs = jobs;
+		}
+	}
+	/**
+	 * Creates the receive port and starts receiving messages from the other slaves.
+	 * The other slaves are added when they are told to have joined (see Pool.addListener()).
+	 *
+	 * @param ibis
+	 * 		The ibis of this slave.
+	 * @param slaveToSlave
+	 * 		The slave-to-slave port type.
+	 * @param master
+	 * 		The master of this slave.
+	 * @param site
+	 * 		The site of this slave, null to steal from the slaves of all sites.
+	 * @param root
+	 * 		The cube to solve.
+	 * @param events
+	 * 		The queue loans received are put in.
+	 */
+	public Peers(Ibis ibis, PortType slaveToSlave, IbisIdentifier master, String site, Cube root, BlockingQueue<Object> events) throws IOException
+	{
+		this.site = site;
+		this.root = root;
+		this.myIbis = ibis;
+		this.slaveToSlavePortType = slaveToSlave;
+		this.events = events;
+		this.master = master;
+		this.receive = myIbis.createReceivePort(slaveToSlavePortType, "slave-to-slave");
+		this.receive.enableConnections();
+		Thread receiver = new Thread(this);
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+	/**
+	 * Returns if there are other slaves to steal from.
+	 *
+	 * @return true if this is the only slave.
+	 */
+	public boolean isEmpty()
+	{
+		return peers.length == 0;
+	}
+	/**
+	 * Sets the work jobs are lent from.
+	 *
+	 * @param unit
+	 * 		The work being solved, null if none.
+	 */
+	public void setCurrent(WorkUnit unit)
+	{
+		this.current = unit;
+	}
+	/**
+	 * Asks a random other slave for work. The answer is put in the queue of events as a Loan,
+	 * with no jobs if the victim had nothing to lend.
+	 *
+	 * @return true if the request was sent.
+	 */
+	public boolean request()
+	{
+		IbisIdentifier[] others = peers;
+		if ( others.length == 0 ) return false;
+		IbisIdentifier victim = others[random.nextInt(others.length)];
+		asked = victim;
+		try
+		{
+			SendPort port = connect(victim);
+			synchronized ( port )
+			{
+				WriteMessage message = port.newMessage();
+				message.writeInt(REQUEST);
+				message.finish();
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to send a steal request: " + e.getMessage());
+			return false;
+		}
+	}
+	/**
+	 * Gives the result of a loan back to the slave that lent it.
+	 *
+	 * @param loan
+	 * 		The loan.
+	 * @param unit
+	 * 		The finished work the loan was solved as.
+	 */
+	public void giveBack(Loan loan, WorkUnit unit)
+	{
+		try
+		{
+			SendPort port = connect(loan.lender);
+			synchronized ( port )
+			{
+				WriteMessage message = port.newMessage();
+				message.writeInt(RETURN);
+				message.writeInt(unit.getSolutions());
+				if ( Rubiks.PRINT_SOLUTION ) Messages.writePaths(message, unit.getPaths());
+				message.finish();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to give a loan back: " + e.getMessage());
+		}
+	}
+	/**
+	 * Receives the messages of the other slaves until the receive port is closed.
+	 */
+	@Override
+	public void run()
+	{
+		while ( true )
+		{
+			try
+			{
+				ReadMessage message = receive.receive();
+				if ( message == null ) return;
+				IbisIdentifier origin = message.origin().ibisIdentifier();
+				int type = message.readInt();
+				if ( type == REQUEST )
+				{
+					message.finish();
+					lend(origin);
+				}
+				else if ( type == LOAN )
+				{
+					Cube[] jobs = Messages.readJobs(message, root);
+					message.finish();
+					asked = null;
+					events.put(new Loan(origin, jobs));
+				}
+				else
+				{
+					int found = message.readInt();
+					int[][] paths = Rubiks.PRINT_SOLUTION ? Messages.readPaths(message) : new int[0][];
+					message.finish();
+					Loan loan = null;
+					synchronized ( lent )
+					{
+						LinkedList<Loan> loans = lent.get(origin);
+						if ( loans != null ) loan = loans.poll();
+					}
+					/*
+					 * Without a loan, the thief was taken for lost and the jobs were solved here.
+					 */
+					if ( loan != null ) loan.unit.returned(found, Arrays.asList(paths));
+				}
+			}
+			catch (IOException e)
+			{
+				/*
+				 * The port is closed.
+				 */
+				return;
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+	/**
+	 * Answers a steal request, with part of the current work or with no jobs.
+	 *
+	 * @param thief
+	 * 		The slave asking for work.
+	 */
+	private void lend(IbisIdentifier thief) throws InterruptedException
+	{
+		WorkUnit unit = current;
+		Cube[] jobs = unit == null ? null : unit.lend(SPLIT_WAIT);
+		Loan loan = null;
+		if ( jobs != null )
+		{
+			/*
+			 * Recorded before it is sent, so it is taken back if the thief is lost meanwhile.
+			 */
+			loan = new Loan(myIbis.identifier(), jobs);
+			loan.unit = unit;
+			synchronized ( lent )
+			{
+				if ( !lent.containsKey(thief) ) lent.put(thief, new LinkedList<Loan>());
+				lent.get(thief).add(loan);
+			}
+		}
+		try
+		{
+			SendPort port = connect(thief);
+			synchronized ( port )
+			{
+				WriteMessage message = port.newMessage();
+				message.writeInt(LOAN);
+				Messages.writeJobs(message, jobs == null ? new Cube[0] : jobs);
+				message.finish();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to lend work: " + e.getMessage());
+			/*
+			 * The thief did not get the jobs, so they are solved here.
+			 */
+			if ( loan != null ) takeBack(thief, loan);
+		}
+	}
+	/**
+	 * Called when an ibis joins: if it is another slave of the same site, it is asked for work from now on.
+	 *
+	 * @param ibis
+	 * 		The ibis.
+	 */
+	@Override
+	public void joined(IbisIdentifier ibis)
+	{
+		if ( ibis.equals(master) || ibis.equals(myIbis.identifier()) ) return;
+		if ( site != null && !site.equals(Pool.siteOf(ibis)) ) return;
+		synchronized ( lent )
+		{
+			List<IbisIdentifier> others = new ArrayList<IbisIdentifier>(Arrays.asList(peers));
+			if ( others.contains(ibis) ) return;
+			others.add(ibis);
+			peers = others.toArray(new IbisIdentifier[others.size()]);
+		}
+	}
+	/**
+	 * Called when a slave is lost: it is not asked for work anymore, the jobs lent to it are taken back,
+	 * and if it was asked for work, the answer is that it had none.
+	 *
+	 * @param ibis
+	 * 		The slave lost.
+	 */
+	@Override
+	public void lost(IbisIdentifier ibis)
+	{
+		LinkedList<Loan> loans;
+		synchronized ( lent )
+		{
+			List<IbisIdentifier> others = new ArrayList<IbisIdentifier>(Arrays.asList(peers));
+			others.remove(ibis);
+			peers = others.toArray(new IbisIdentifier[others.size()]);
+			loans = lent.remove(ibis);
+		}
+		if ( loans != null )
+		{
+			for ( Loan loan : loans )
+			{
+				loan.unit.unlend(loan.jobs);
+			}
+		}
+		if ( ibis.equals(asked) )
+		{
+			asked = null;
+			events.offer(new Loan(ibis, new Cube[0]));
+		}
+	}
+	/**
+	 * Takes back a loan which could not be sent, if it was not taken back yet.
+	 *
+	 * @param thief
+	 * 		The slave the loan was for.
+	 * @param loan
+	 * 		The loan.
+	 */
+	private void takeBack(IbisIdentifier thief, Loan loan)
+	{
+		boolean recorded;
+		synchronized ( lent )
+		{
+			LinkedList<Loan> loans = lent.get(thief);
+			recorded = loans != null && loans.remove(loan);
+		}
+		if ( recorded ) loan.unit.unlend(loan.jobs);
+	}
+	/**
+	 * Returns the port to send to a slave, connecting it the first time.
+	 *
+	 * @param slave
+	 * 		The slave.
+	 * @return the connected send port.
+	 */
+	private synchronized SendPort connect(IbisIdentifier slave) throws IOException
+	{
+		SendPort port = sendPorts.get(slave);
+		if ( port == null )
+		{
+			port = myIbis.createSendPort(slaveToSlavePortType);
+			port.connect(slave, "slave-to-slave");
+			sendPorts.put(slave, port);
+		}
+		return port;
+	}
+	/**
+	 * Closes the ports. The other slaves may still be connected, so the receive port is closed after a while anyway.
+	 */
+	public synchronized void close()
+	{
+		try
+		{
+			for ( SendPort port : sendPorts.values() )
+			{
+				port.close();
+			}
+			receive.close(CLOSE_WAIT);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to close the ports: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package rubiks.ipl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.RegistryEventHandler;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * The ibises of the pool, as told by the registry. Ibises may join at any time if the pool is malleable.
+ * An ibis that died, or left before the end, is lost: the listeners are told, so the master gives its jobs
+ * to the others, and the other slaves take back the jobs they lent to it.
+ * The registry only calls the handler after Registry.enableEvents().
+ */
+public class Pool implements RegistryEventHandler {
+	/**
+	 * Told when an ibis joins the pool or is lost.
+	 * Called from the registry's thread, in the order of the events, at most once per ibis and event.
+	 */
+	public interface Listener {
+		/**
+		 * Called when an ibis joined.
+		 *
+		 * @param ibis
+		 * 		The ibis.
+		 */
+		void joined(IbisIdentifier ibis);
+		/**
+		 * Called when an ibis died or left.
+		 *
+		 * @param ibis
+		 * 		The ibis lost.
+		 */
+		void lost(IbisIdentifier ibis);
+	}
+	/*
+	 * The ibises that joined and are not lost.
+	 */
+	List<IbisIdentifier> members = new ArrayList<IbisIdentifier>();
+	/*
+	 * The ibises lost.
+	 */
+	Set<IbisIdentifier> lost = new HashSet<IbisIdentifier>();
+	List<Listener> listeners = new ArrayList<Listener>();
+	/**
+	 * Adds a listener, which is first told about the ibises that joined and were lost before.
+	 * Listeners are called with the pool locked, so they must not wait for other threads.
+	 *
+	 * @param listener
+	 * 		The listener.
+	 */
+	public synchronized void addListener(Listener listener)
+	{
+		listeners.add(listener);
+		for ( IbisIdentifier ibis : members )
+		{
+			listener.joined(ibis);
+		}
+		for ( IbisIdentifier ibis : lost )
+		{
+			listener.lost(ibis);
+		}
+	}
+	/**
+	 * Returns the site of an ibis: its location without the node, which is the first level.
+	 *
+	 * @param ibis
+	 * 		The ibis.
+	 * @return the site.
+	 */
+	public static String siteOf(IbisIdentifier ibis)
+	{
+		return ibis.location().getParent().toString();
+	}
+	/**
+	 * Returns the ibises lost so far.
+	 *
+	 * @return the ibises.
+	 */
+	public synchronized IbisIdentifier[] getLost()
+	{
+		return lost.toArray(new IbisIdentifier[lost.size()]);
+	}
+	/**
+	 * Returns if an ibis is lost.
+	 *
+	 * @param ibis
+	 * 		The ibis.
+	 * @return true if it died or left.
+	 */
+	public synchronized boolean isLost(IbisIdentifier ibis)
+	{
+		return lost.contains(ibis);
+	}
+	@Override
+	public synchronized void joined(IbisIdentifier ibis)
+	{
+		members.add(ibis);
+		for ( Listener listener : listeners )
+		{
+			listener.joined(ibis);
+		}
+	}
+	@Override
+	public void left(IbisIdentifier ibis)
+	{
+		lose(ibis);
+	}
+	@Override
+	public void died(IbisIdentifier ibis)
+	{
+		lose(ibis);
+	}
+	@Override
+	public void poolClosed()
+	{
+	}
+	@Override
+	public void gotSignal(String signal, IbisIdentifier source)
+	{
+	}
+	@Override
+	public void electionResult(String electionName, IbisIdentifier winner)
+	{
+	}
+	@Override
+	public void poolTerminated(IbisIdentifier source)
+	{
+	}
+	/**
+	 * Marks an ibis lost, and tells the listeners.
+	 *
+	 * @param ibis
+	 * 		The ibis.
+	 */
+	private synchronized void lose(IbisIdentifier ibis)
+	{
+		if ( !lost.add(ibis) ) return;
+		members.remove(ibis);
+		for ( Listener listener : listeners )
+		{
+			listener.lost(ibis);
+		}
+	}
+}
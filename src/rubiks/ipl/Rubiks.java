@@ -17,12 +17,22 @@ public class Rubiks {
 	 * 	Port Types.
 	 */
 	static PortType masterToSlavePortType = new PortType(PortType.CONNECTION_ONE_TO_ONE, PortType.COMMUNICATION_RELIABLE, 
-			PortType.RECEIVE_EXPLICIT, PortType.SERIALIZATION_OBJECT);
+			PortType.RECEIVE_EXPLICIT, PortType.SERIALIZATION_DATA);
 	
 	static PortType slaveToMasterPortType = new PortType(PortType.CONNECTION_MANY_TO_ONE, PortType.COMMUNICATION_RELIABLE, 
-					PortType.RECEIVE_POLL, PortType.RECEIVE_EXPLICIT, PortType.SERIALIZATION_OBJECT);
+					PortType.RECEIVE_POLL, PortType.RECEIVE_EXPLICIT, PortType.RECEIVE_TIMEOUT, PortType.SERIALIZATION_DATA);
 	
-	static IbisCapabilities ibisCapabilities = new IbisCapabilities(IbisCapabilities.ELECTIONS_STRICT, IbisCapabilities.CLOSED_WORLD);
+	static PortType slaveToSlavePortType = new PortType(PortType.CONNECTION_MANY_TO_ONE, PortType.COMMUNICATION_RELIABLE, 
+					PortType.RECEIVE_EXPLICIT, PortType.SERIALIZATION_DATA);
+	
+	static IbisCapabilities ibisCapabilities = new IbisCapabilities(IbisCapabilities.ELECTIONS_STRICT, IbisCapabilities.CLOSED_WORLD,
+			IbisCapabilities.MEMBERSHIP_TOTALLY_ORDERED);
+	
+	/*
+	 * 	Capabilities of an open pool, which slaves join and leave during the run.
+	 */
+	static IbisCapabilities malleableCapabilities = new IbisCapabilities(IbisCapabilities.ELECTIONS_STRICT, IbisCapabilities.MALLEABLE,
+			IbisCapabilities.MEMBERSHIP_TOTALLY_ORDERED);
 	
 	public static void printUsage() {
 		System.out.println("Rubiks Cube solver");
@@ -41,7 +51,13 @@ public class Rubiks {
 		System.out
 			.println("--seed SEED\t\tSeed of random generator (default: 0");
 		System.out
-			.println("--threads THREADS\t\tNumber of threads to use (default: 1, other values not supported by sequential version)");
+			.println("--threads THREADS\tNumber of threads per node (default: one per core)");
+		System.out
+			.println("--transpositions MB\tMemory of the transposition table of each node (default: 0, no table)");
+		System.out
+			.println("--malleable\t\tStart at once, slaves may join and leave during the run (default: wait for the whole pool)");
+		System.out
+			.println("--sites\t\t\tOne sub-master per site, the slaves of a site only talk to it and to each other (default: off)");
 		System.out.println("");
 		System.out
 			.println("--file FILE_NAME\t\tLoad cube from given file instead of generating it");
@@ -63,8 +79,17 @@ public class Rubiks {
 		int seed = 0;
 		String fileName = null;
 
-		// number of threads used to solve puzzle
-		// (not used in sequential version)
+		// number of threads per node, 0 for one per core
+		int threads = 0;
+
+		// memory of the transposition table in MB, 0 for none
+		int transpositions = 0;
+
+		// open pool, the master does not wait for the slaves
+		boolean malleable = false;
+
+		// a sub-master per site, other than the site of the master
+		boolean sites = false;
 
 		for (int i = 0; i < arguments.length; i++) {
 		    if (arguments[i].equalsIgnoreCase("--size")) {
@@ -76,6 +101,16 @@ public class Rubiks {
 		    } else if (arguments[i].equalsIgnoreCase("--seed")) {
 			i++;
 			seed = Integer.parseInt(arguments[i]);
+		    } else if (arguments[i].equalsIgnoreCase("--threads")) {
+			i++;
+			threads = Integer.parseInt(arguments[i]);
+		    } else if (arguments[i].equalsIgnoreCase("--transpositions")) {
+			i++;
+			transpositions = Integer.parseInt(arguments[i]);
+		    } else if (arguments[i].equalsIgnoreCase("--malleable")) {
+			malleable = true;
+		    } else if (arguments[i].equalsIgnoreCase("--sites")) {
+			sites = true;
 		    } else if (arguments[i].equalsIgnoreCase("--file")) {
 			i++;
 			fileName = arguments[i];
@@ -101,17 +136,21 @@ public class Rubiks {
 		    }
 		}
 		
-		//Initialization.
+		//Initialization, with the registry telling the pool which ibises join and which are lost.
+		Pool pool = new Pool();
 		Ibis ibis = null;
 		try
 		{
-			ibis = IbisFactory.createIbis(ibisCapabilities, null, slaveToMasterPortType, masterToSlavePortType);
+			ibis = IbisFactory.createIbis(malleable ? malleableCapabilities : ibisCapabilities, pool, slaveToMasterPortType, masterToSlavePortType, slaveToSlavePortType);
 		}
 		catch (IbisCreationFailedException e)
 		{
 			System.err.println("Ibis creation failed: " + e.getMessage());
 			System.exit(1);
 		}
+		ibis.registry().enableEvents();
+		//Transposition table of this node.
+		TranspositionTable table = transpositions > 0 ? new TranspositionTable(transpositions) : null;
 		//Master election.
 		IbisIdentifier master = null;
 		try 
@@ -131,12 +170,57 @@ public class Rubiks {
 				+ cube.getSize() + ", twists = " + twists + ", seed = " + seed);
 			cube.print(System.out);
 			System.out.flush();	
-			//Start the master.
-			new Master(ibis, cube, masterToSlavePortType, slaveToMasterPortType).Run();
+			//Start the master at once, it waits for all the other ibises of the pool to say hello only to quit them.
+			int slaves = malleable ? 0 : ibis.registry().getPoolSize() - 1;
+			new Master(ibis, cube, masterToSlavePortType, slaveToMasterPortType, pool, slaves, threads, table).Run();
 		}
 		else
 		{
-			new Slave(ibis, master, masterToSlavePortType, slaveToMasterPortType, cube.getSize()).Run();
+			//A slave stopped before the end leaves the pool, so the others are told at once and take its jobs.
+			final Ibis leaving = ibis;
+			Thread leave = new Thread() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						leaving.end();
+					}
+					catch (IOException e)
+					{
+						System.err.println("Leaving the pool failed: " + e.getMessage());
+					}
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(leave);
+			//With sites, the slaves of another site than the master's are given their jobs by the sub-master of their site.
+			IbisIdentifier parent = master;
+			String site = null;
+			if ( sites )
+			{
+				site = Pool.siteOf(ibis.identifier());
+				if ( !site.equals(Pool.siteOf(master)) )
+				{
+					try
+					{
+						parent = ibis.registry().elect("sub-master " + site);
+					}
+					catch (IOException e)
+					{
+						System.err.println("Sub-master election failed: " + e.getMessage());
+						System.exit(1);
+					}
+				}
+			}
+			if ( parent.equals(ibis.identifier()) )
+			{
+				new SubMaster(ibis, master, masterToSlavePortType, slaveToMasterPortType, pool, cube.getSize(), threads, table).Run();
+			}
+			else
+			{
+				new Slave(ibis, parent, masterToSlavePortType, slaveToMasterPortType, slaveToSlavePortType, pool, site, cube.getSize(), threads, table).Run();
+			}
+			Runtime.getRuntime().removeShutdownHook(leave);
 		}
 		
 		try 
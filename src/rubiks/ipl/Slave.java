@@ -1,6 +1,11 @@
 package rubiks.ipl;
 
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import ibis.ipl.*;
 
@@ -8,8 +13,22 @@ import ibis.ipl.*;
  * @author Vittorio Massaro
  * 
  * A slave able to execute some cubes in order to find a solution.
+ * The slave solves the batches of the master. When the master has no batches left,
+ * it steals work from the other slaves until the master sends a new batch.
+ * When its master is lost, which is the sub-master of its site with sub-masters, the slave quits:
+ * its jobs are given to the others by the master, or with the sub-master by the master above it.
  */
-public class Slave {
+public class Slave implements Pool.Listener {
+	/*
+	 * Time an idle slave waits before asking for work again, after a slave had none to lend, in milliseconds.
+	 * It doubles after each empty loan up to the maximum, so idle slaves do not flood each other at the end of a bound.
+	 */
+	static final long STEAL_BACKOFF = 2;
+	static final long MAX_STEAL_BACKOFF = 128;
+	/*
+	 * Put in the queue of events when the master says to quit.
+	 */
+	static final Object QUIT = new Object();
 	/*
 	 * Ibis global parameters.
 	 */
@@ -17,10 +36,36 @@ public class Slave {
 	IbisIdentifier master;
 	PortType masterToSlavePortType;
 	PortType slaveToMasterPortType;
+	PortType slaveToSlavePortType;
+	Pool pool;
+	/*
+	 * The site of this slave, whose other slaves it steals from, null for all sites.
+	 */
+	String site;
+	/*
+	 * The threads solving the jobs.
+	 */
+	LocalSolver solver;
+	/*
+	 * The cube to solve, received once from the master. Jobs are received as the twists done on it.
+	 */
+	Cube root;
+	/*
+	 * Messages for the main thread: batches of the master (Cube[]), loans of the other slaves, or QUIT.
+	 */
+	BlockingQueue<Object> events = new LinkedBlockingQueue<Object>();
+	/*
+	 * Events put aside while waiting for the answer to a steal request.
+	 */
+	LinkedList<Object> deferred = new LinkedList<Object>();
 	/*
-	 * The cache used.
+	 * Set when the master is lost, or cannot be reached anymore.
 	 */
-	CubeCache cache;
+	volatile boolean masterLost = false;
+	/*
+	 * Set when the master says to quit, so the master leaving the pool afterwards is not a loss.
+	 */
+	volatile boolean quitReceived = false;
 	
 	/**
 	 * Creates a new Slave.
@@ -28,21 +73,34 @@ public class Slave {
 	 * @param ibis
 	 * 		The ibis identifier.
 	 * @param master
-	 * 		The master ibis identifier.
+	 * 		The master ibis identifier, or the sub-master of the site of this slave.
 	 * @param masterToSlave
 	 * 		The master-to-slave port type.
 	 * @param slaveToMaster
 	 * 		The slave-to-master port type.
+	 * @param slaveToSlave
+	 * 		The slave-to-slave port type.
+	 * @param pool
+	 * 		The ibises of the pool, as told by the registry.
+	 * @param site
+	 * 		The site of this slave, null to steal from the slaves of all sites.
 	 * @param cubeSize
 	 * 		The size of the cube to be solved.
+	 * @param threads
+	 * 		The number of threads solving the jobs, 0 for one per core.
+	 * @param table
+	 * 		The transposition table of this node, null for none.
 	 */
-	public Slave(Ibis ibis, IbisIdentifier master, PortType masterToSlave, PortType slaveToMaster, int cubeSize)
+	public Slave(Ibis ibis, IbisIdentifier master, PortType masterToSlave, PortType slaveToMaster, PortType slaveToSlave, Pool pool, String site, int cubeSize, int threads, TranspositionTable table)
 	{
+		this.slaveToSlavePortType = slaveToSlave;
+		this.pool = pool;
+		this.site = site;
 		this.master = master;
 		this.myIbis = ibis;
 		this.masterToSlavePortType = masterToSlave;
 		this.slaveToMasterPortType = slaveToMaster;
-		this.cache = new CubeCache(cubeSize);
+		this.solver = new LocalSolver(threads, cubeSize, table);
 	}
 	
 	public void Run()
@@ -76,7 +134,7 @@ public class Slave {
 		ReceivePort receive = null;
 		try 
 		{
-			receive = myIbis.createReceivePort(masterToSlavePortType, null);
+			receive = myIbis.createReceivePort(masterToSlavePortType, "master-to-slave");
 		} 
 		catch (IOException e) 
 		{
@@ -86,11 +144,15 @@ public class Slave {
 		receive.enableConnections();
 		/*
 		 * Send a message to the server, asking for jobs.
+		 * The number of cores tells the master how many jobs this slave can take.
+		 * The master connects to the receive port by its name.
 		 */
 		try 
 		{
 			 WriteMessage result = send.newMessage();
-		     result.writeObject(receive.identifier());
+		     result.writeInt(Messages.HELLO);
+		     result.writeInt(solver.getThreads());
+		     result.writeInt(1);
 		     result.finish();
 		}
 		catch ( IOException e)
@@ -99,57 +161,175 @@ public class Slave {
 			return;
 		}
 		/*
-		 * The cubes to solve will be in this variable.
+		 * The master answers with the cube to solve.
+		 */
+		try
+		{
+			ReadMessage cube = receive.receive();
+			root = Messages.readCubes(cube)[0];
+			cube.finish();
+		}
+		catch ( IOException e)
+		{
+			System.err.println("Unable to receive the cube: " + e.getMessage());
+			return;
+		}
+		/*
+		 * The other slaves of the pool, to steal from, are all the ibises but the master, or of the same site.
+		 * They are told when one of them joins or is lost.
+		 */
+		Peers peers = null;
+		try
+		{
+			peers = new Peers(myIbis, slaveToSlavePortType, master, site, root, events);
+			pool.addListener(peers);
+			pool.addListener(this);
+		}
+		catch ( IOException e)
+		{
+			System.err.println("Unable to create the port for the other slaves: " + e.getMessage());
+			return;
+		}
+		/*
+		 * The messages of the master are received by a thread of their own, so a stealing slave sees them.
+		 */
+		final ReceivePort fromMaster = receive;
+		Thread receiver = new Thread() {
+			@Override
+			public void run()
+			{
+				receiveJobs(fromMaster);
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+		/*
+		 * Stealing is true when the master has no batches left, and stealRequest when a request to another slave is not answered yet.
+		 * While a request is not answered, nothing else is started: a slave waiting for a loan would never give its own loans back,
+		 * and two slaves waiting for each other's loans would wait forever. So loans only go to idle slaves.
 		 */
-		Cube[] currentCubes = null;
-		do
+		boolean stealing = false;
+		boolean stealRequest = false;
+		long backoff = STEAL_BACKOFF;
+		while ( true )
 		{
+			Object event;
+			try
+			{
+				if ( stealRequest ) event = takeAnswer();
+				else if ( !deferred.isEmpty() ) event = deferred.poll();
+				else if ( stealing ) event = events.poll(backoff, TimeUnit.MILLISECONDS);
+				else event = events.take();
+			}
+			catch (InterruptedException e)
+			{
+				System.err.println("Waiting for jobs in slave: " + e.getMessage());
+				return;
+			}
+			if ( event == QUIT ) break;
+			if ( event == null )
+			{
+				/*
+				 * Nothing to do: ask another slave for work.
+				 */
+				stealRequest = peers.request();
+				continue;
+			}
+			WorkUnit unit;
+			Peers.Loan loan = null;
+			if ( event instanceof Peers.Loan )
+			{
+				stealRequest = false;
+				loan = (Peers.Loan) event;
+				if ( loan.jobs.length == 0 )
+				{
+					backoff = Math.min(2 * backoff, MAX_STEAL_BACKOFF);
+					continue;
+				}
+				backoff = STEAL_BACKOFF;
+				unit = new WorkUnit(loan.jobs);
+			}
+			else
+			{
+				Cube[] batch = (Cube[]) event;
+				if ( batch.length == 0 )
+				{
+					/*
+					 * The master has no batches left for this bound.
+					 */
+					stealing = !peers.isEmpty();
+					backoff = STEAL_BACKOFF;
+					continue;
+				}
+				stealing = false;
+				unit = new WorkUnit(batch);
+			}
 			/*
-			 * Wait for new jobs.
+			 * Solve the work on all the cores, lending part of it to idle slaves.
 			 */
+			peers.setCurrent(unit);
 			try
 			{
-				ReadMessage job = receive.receive();
-				currentCubes = (Cube[]) job.readObject();
-		        job.finish();
+				solver.solve(unit);
 			}
-			catch ( IOException e)
+			catch (InterruptedException e)
 			{
-				System.err.println("Unable to receive the job: " + e.getMessage());
+				System.err.println("Waiting for the results in slave: " + e.getMessage());
 				return;
 			}
-			catch ( ClassNotFoundException e)
+			catch (ExecutionException e)
 			{
-				System.err.println("Unable to read the Cube: " + e.getMessage());
+				System.err.println("Waiting for the results in slave: " + e.getMessage());
 				return;
 			}
-			
-			if ( currentCubes != null)
+			peers.setCurrent(null);
+			if ( loan != null )
 			{
 				/*
-				 * If there is a new job, solve it.
+				 * Give the result of a loan back to the slave that lent it.
 				 */
-				int solutions = 0;
-				for ( Cube currentCube : currentCubes)
-				{
-					solutions += solutions(currentCube, cache);
-				}
+				peers.giveBack(loan, unit);
+				continue;
+			}
+			/*
+			 * Send the result back, this also asks the master for the next batch.
+			 */
+			try 
+			{
+				 WriteMessage result = send.newMessage();
+			     result.writeInt(Messages.RESULT);
+			     result.writeInt(unit.getSolutions());
+			     if ( Rubiks.PRINT_SOLUTION )
+			     {
+			    	 /*
+			    	  * Also send the twists of the solutions found.
+			    	  */
+			    	 Messages.writePaths(result, unit.getPaths());
+			     }
+			     result.finish();
+			}
+			catch ( IOException e)
+			{
 				/*
-				 * Send the result back.
+				 * The master cannot be reached: stop, still stopping the threads.
 				 */
-				try 
-				{
-					 WriteMessage result = send.newMessage();
-				     result.writeInt(solutions);
-				     result.finish();
-				}
-				catch ( IOException e)
-				{
-					System.err.println("Unable to send the result: " + e.getMessage());
-					return;
-				}
+				System.err.println("Unable to send the result: " + e.getMessage());
+				masterLost = true;
+				break;
 			}
-		} while ( currentCubes != null);
+		}
+		/*
+		 * Stop stealing.
+		 */
+		peers.close();
+		/*
+		 * Stop the threads.
+		 */
+		solver.shutdown();
+		/*
+		 * The ports of a lost master are not closed, as the master never closes its side.
+		 */
+		if ( masterLost ) return;
 		/*
 		 * Close the sent port.
 		 */
@@ -175,41 +355,75 @@ public class Slave {
 			return;
 		}
 	}
-	
 	/**
-     * Recursive function to find a solution for a given cube. Only searches to
-     * the bound set in the cube object.
-     * 
-     * @param cube
-     *            cube to solve
-     * @param cache
-     *            cache of cubes used for new cube objects
-     * @return the number of solutions found
-     */
-    private static int solutions(Cube cube, CubeCache cache) {
-        if (cube.isSolved()) {
-            return 1;
-        }
-
-        if (cube.getTwists() >= cube.getBound()) {
-            return 0;
-        }
-
-        // generate all possible cubes from this one by twisting it in
-        // every possible way. Gets new objects from the cache
-        Cube[] children = cube.generateChildren(cache);
-
-        int result = 0;
+	 * Called when an ibis joins the pool. Only the other slaves are interested, see Peers.
+	 *
+	 * @param ibis
+	 * 		The ibis.
+	 */
+	@Override
+	public void joined(IbisIdentifier ibis)
+	{
+	}
+	/**
+	 * Called when an ibis of the pool is lost: if it is the master of this slave, nothing can be reported anymore, so the slave quits.
+	 *
+	 * @param ibis
+	 * 		The ibis lost.
+	 */
+	@Override
+	public void lost(IbisIdentifier ibis)
+	{
+		if ( !ibis.equals(master) || quitReceived ) return;
+		System.err.println("Master " + ibis + " lost, quitting");
+		masterLost = true;
+		events.offer(QUIT);
+	}
+	/**
+	 * Waits for the answer to a steal request, putting the other events aside.
+	 * If the master says to quit, no answer can have any jobs anymore, so it is not waited for.
+	 *
+	 * @return the answer, or QUIT.
+	 */
+	private Object takeAnswer() throws InterruptedException
+	{
+		while ( true )
+		{
+			Object event = events.take();
+			if ( event instanceof Peers.Loan || event == QUIT ) return event;
+			deferred.add(event);
+		}
+	}
+	/**
+	 * Receives the batches of the master and puts them in the queue of events, until the master says to quit.
+	 *
+	 * @param receive
+	 * 		The port receiving the messages of the master.
+	 */
+	private void receiveJobs(ReceivePort receive)
+	{
+		try
+		{
+			Cube[] batch;
+			do
+			{
+				ReadMessage job = receive.receive();
+				batch = Messages.readJobs(job, root);
+				job.finish();
+				if ( batch == null ) quitReceived = true;
+				events.put(batch == null ? QUIT : batch);
+			} while ( batch != null );
+		}
+		catch ( IOException e)
+		{
+			System.err.println("Unable to receive the job: " + e.getMessage());
+			masterLost = true;
+			events.offer(QUIT);
+		}
+		catch ( InterruptedException e)
+		{
+			System.err.println("Unable to queue the job: " + e.getMessage());
+		}
+	}
 
-        for (Cube child : children) {
-            // recursion step
-            int childSolutions = solutions(child, cache);
-            if (childSolutions > 0) {
-                result += childSolutions;
-            }
-            // put child object in cache
-            cache.put(child);
-        }
-        return result;
-    }
 }
@@ -0,0 +1,298 @@
+package rubiks.ipl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ibis.ipl.*;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * The sub-master of a site, between the master and the slaves of the site (see Pool.siteOf()).
+ * To the master it is a slave offering the cores of its whole site: it says hello with them,
+ * and tells the master when slaves of its site join or are lost.
+ * To the slaves of its site it is the master: each batch of the master is split again in jobs,
+ * solved by these slaves and its own threads like a bound by the master, and one result is sent back.
+ * So only the batches and their results cross the sites, and the slaves only steal from the slaves of their own site.
+ */
+public class SubMaster extends Master {
+	/*
+	 * Maximum time the sub-master waits for a batch of the master before handling the slaves saying hello, in milliseconds.
+	 */
+	static final long HELLO_CHECK = 100;
+	/*
+	 * Put in the queue of batches when the master says to quit.
+	 */
+	static final Cube[] QUIT = new Cube[0];
+	/*
+	 * The master of the pool, and the ports to and from it.
+	 */
+	IbisIdentifier master;
+	SendPort toMaster;
+	ReceivePort fromMaster;
+	/*
+	 * The batches of the master, or QUIT.
+	 */
+	BlockingQueue<Cube[]> batches = new LinkedBlockingQueue<Cube[]>();
+	/*
+	 * True once the master said to quit, so the slaves saying hello after that are not reported anymore.
+	 */
+	boolean quitting = false;
+	/**
+	 * Creates a new SubMaster.
+	 *
+	 * @param ibis
+	 * 		The ibis identifier.
+	 * @param master
+	 * 		The master ibis identifier.
+	 * @param masterToSlave
+	 * 		The master-to-slave port type.
+	 * @param slaveToMaster
+	 * 		The slave-to-master port type.
+	 * @param pool
+	 * 		The ibises of the pool, as told by the registry.
+	 * @param cubeSize
+	 * 		The size of the cube to be solved.
+	 * @param threads
+	 * 		The number of threads solving the local jobs, 0 for one per core.
+	 * @param table
+	 * 		The transposition table of this node, null for none.
+	 */
+	public SubMaster(Ibis ibis, IbisIdentifier master, PortType masterToSlave, PortType slaveToMaster, Pool pool, int cubeSize, int threads, TranspositionTable table)
+	{
+		/*
+		 * The cube to solve is received from the master.
+		 */
+		super(ibis, new Cube(cubeSize), masterToSlave, slaveToMaster, pool, 0, threads, table);
+		this.master = master;
+	}
+	@Override
+	public void Run()
+	{
+		/*
+		 * Initialization of the ports: the slaves of the site connect to this node as to the master,
+		 * and this node connects to the master as a slave.
+		 */
+		try
+		{
+			receive = myIbis.createReceivePort(slaveToMasterPortType, "slave-to-master");
+			receive.enableConnections();
+			toMaster = myIbis.createSendPort(slaveToMasterPortType);
+			toMaster.connect(master, "slave-to-master");
+			fromMaster = myIbis.createReceivePort(masterToSlavePortType, "master-to-slave");
+			fromMaster.enableConnections();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to create the ports of the sub-master: " + e.getMessage());
+			return;
+		}
+		/*
+		 * Say hello with the cores of this node only, the slaves of the site are told as they say hello.
+		 */
+		try
+		{
+			WriteMessage hello = toMaster.newMessage();
+			hello.writeInt(Messages.HELLO);
+			hello.writeInt(solver.getThreads());
+			hello.writeInt(1);
+			hello.finish();
+			ReadMessage root = fromMaster.receive();
+			cube = Messages.readCubes(root)[0];
+			root.finish();
+			cube.setPath(new int[0]);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to receive the cube: " + e.getMessage());
+			return;
+		}
+		/*
+		 * The batches of the master are received by a thread of their own, so the slaves of the site are handled meanwhile.
+		 */
+		Thread receiver = new Thread() {
+			@Override
+			public void run()
+			{
+				receiveBatches();
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+		while ( true )
+		{
+			Cube[] batch;
+			try
+			{
+				batch = batches.poll(HELLO_CHECK, TimeUnit.MILLISECONDS);
+				/*
+				 * Between two batches, only slaves saying hello or lost are expected.
+				 */
+				ReadMessage message;
+				while ( (message = receive.poll()) != null )
+				{
+					handle(message);
+				}
+				requeueLost();
+			}
+			catch (InterruptedException e)
+			{
+				System.err.println("Waiting for jobs in sub-master: " + e.getMessage());
+				break;
+			}
+			catch (IOException e)
+			{
+				System.err.println("Unable to receive the hellos: " + e.getMessage());
+				continue;
+			}
+			if ( batch == QUIT ) break;
+			/*
+			 * An empty batch: the master has no batches left for this bound.
+			 */
+			if ( batch == null || batch.length == 0 ) continue;
+			if ( !solveBatch(batch) ) break;
+		}
+		quitting = true;
+		/*
+		 * Stop the local threads, quit the slaves of the site and close all the ports.
+		 */
+		solver.shutdown();
+		quitSlaves();
+		closePorts();
+		try
+		{
+			toMaster.close();
+			fromMaster.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to close the ports to the master: " + e.getMessage());
+		}
+	}
+	/**
+	 * Solves a batch of the master on the site, and sends the result back.
+	 *
+	 * @param batch
+	 * 		The jobs, all with the same bound.
+	 * @return false if the result could not be sent.
+	 */
+	private boolean solveBatch(Cube[] batch)
+	{
+		this.solutions = 0;
+		this.solutionPaths.clear();
+		solving = true;
+		try
+		{
+			int local = distribute(generateJobs(batch));
+			this.solutions += local;
+		}
+		catch (InterruptedException e)
+		{
+			System.err.println("Solving the jobs in sub-master: " + e.getMessage());
+			return false;
+		}
+		catch (ExecutionException e)
+		{
+			System.err.println("Solving the jobs in sub-master: " + e.getMessage());
+			return false;
+		}
+		solving = false;
+		try
+		{
+			WriteMessage result = toMaster.newMessage();
+			result.writeInt(Messages.RESULT);
+			result.writeInt(this.solutions);
+			if ( Rubiks.PRINT_SOLUTION )
+			{
+				/*
+				 * Also send the twists of the solutions found, by the slaves and by the local threads.
+				 */
+				solutionPaths.addAll(Arrays.asList(solver.takePaths()));
+				Messages.writePaths(result, solutionPaths.toArray(new int[0][]));
+			}
+			result.finish();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to send the result: " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+	/**
+	 * Receives the batches of the master and puts them in the queue, until the master says to quit.
+	 */
+	private void receiveBatches()
+	{
+		try
+		{
+			Cube[] batch;
+			do
+			{
+				ReadMessage job = fromMaster.receive();
+				batch = Messages.readJobs(job, cube);
+				job.finish();
+				batches.put(batch == null ? QUIT : batch);
+			} while ( batch != null );
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to receive the batch: " + e.getMessage());
+			batches.offer(QUIT);
+		}
+		catch (InterruptedException e)
+		{
+			System.err.println("Unable to queue the batch: " + e.getMessage());
+		}
+	}
+	/**
+	 * Adds a slave of the site, and tells the master.
+	 */
+	@Override
+	void addSlave(IbisIdentifier slave, int slaveCores, int slaveNodes) throws IOException
+	{
+		super.addSlave(slave, slaveCores, slaveNodes);
+		report();
+	}
+	/**
+	 * Gives the jobs of the lost slaves of the site to the others, and tells the master.
+	 */
+	@Override
+	boolean requeueLost()
+	{
+		boolean lostSlave = super.requeueLost();
+		if ( lostSlave )
+		{
+			try
+			{
+				report();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Unable to tell the master about the lost slaves: " + e.getMessage());
+			}
+		}
+		return lostSlave;
+	}
+	/**
+	 * Tells the master the number of cores and nodes of the site which are not lost.
+	 */
+	private void report() throws IOException
+	{
+		if ( quitting ) return;
+		int siteNodes = 1;
+		for ( IbisIdentifier slave : slaves )
+		{
+			if ( !pool.isLost(slave) ) siteNodes++;
+		}
+		WriteMessage message = toMaster.newMessage();
+		message.writeInt(Messages.CORES);
+		message.writeInt(totalCores);
+		message.writeInt(siteNodes);
+		message.finish();
+	}
+}
@@ -0,0 +1,128 @@
+package rubiks.ipl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Table of the number of solutions found for cubes already searched, shared by
+ * all the threads of a solver. The same cube is often reached by different
+ * twists (e.g. twisting two rows of the same axis in either order), so its
+ * solutions only have to be counted once.
+ *
+ * The number of solutions of a cube only depends on the cube and the number
+ * of twists left, so entries stay valid for all bounds. A cube without
+ * solutions in some number of twists also has none in less twists.
+ *
+ * The table is an open addressing table with a fixed number of entries, each
+ * two longs in an AtomicLongArray: the hash of the cube xor the data, and the
+ * data (count and twists left). Readers never block: an entry which is
+ * being written by another thread fails the xor check and is a miss. Writers
+ * claim an entry with a compare-and-set and simply give up if another writer
+ * was faster. Entries are replaced when their bucket is full, so results can
+ * be lost but are never wrong (apart from a 64-bit hash collision).
+ *
+ */
+public class TranspositionTable {
+
+    // number of entries searched for a cube, starting at its hash
+    private static final int BUCKET = 4;
+
+    // bits of the data used for the number of twists left
+    private static final int TWISTS_BITS = 8;
+
+    private static final long TWISTS_MASK = (1L << TWISTS_BITS) - 1;
+
+    // returned by lookup() if the cube is not in the table
+    public static final long MISS = -1;
+
+    private final AtomicLongArray table;
+
+    // number of entries - 1, the number of entries is a power of two
+    private final int mask;
+
+    /**
+     * Constructor.
+     *
+     * @param megabytes
+     *            memory used by the table, at least 1
+     */
+    public TranspositionTable(int megabytes) {
+        long entries = Math.max(1, megabytes) * 1024L * 1024L / 16;
+        int size = Integer.highestOneBit((int) Math.min(entries, 1 << 30));
+        table = new AtomicLongArray(2 * size);
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the number of entries of the table.
+     *
+     * @return the number of entries
+     */
+    public int getEntries() {
+        return mask + 1;
+    }
+
+    /**
+     * Looks up the number of solutions of a cube.
+     *
+     * @param hash
+     *            hash of the cube (see Cube.hash())
+     * @param twistsLeft
+     *            number of twists left before the bound
+     * @return the number of solutions, or MISS if not known
+     */
+    public long lookup(long hash, int twistsLeft) {
+        for (int i = 0; i < BUCKET; i++) {
+            int index = 2 * (((int) hash + i) & mask);
+            long data = table.get(index + 1);
+            if (data == 0 || (table.get(index) ^ data) != hash) {
+                continue;
+            }
+
+            int stored = (int) (data & TWISTS_MASK);
+            long count = data >>> TWISTS_BITS;
+            if (stored == twistsLeft || (count == 0 && stored >= twistsLeft)) {
+                return count;
+            }
+        }
+        return MISS;
+    }
+
+    /**
+     * Stores the number of solutions of a cube. Replaces the entry of the
+     * same cube, an empty entry or the entry with the least twists left
+     * (the cheapest one to search again).
+     *
+     * @param hash
+     *            hash of the cube (see Cube.hash())
+     * @param twistsLeft
+     *            number of twists left before the bound ( 0 < twistsLeft <
+     *            256 )
+     * @param count
+     *            number of solutions found
+     */
+    public void store(long hash, int twistsLeft, long count) {
+        long data = (count << TWISTS_BITS) | twistsLeft;
+
+        int victim = -1;
+        int victimTwists = Integer.MAX_VALUE;
+        for (int i = 0; i < BUCKET; i++) {
+            int index = 2 * (((int) hash + i) & mask);
+            long old = table.get(index + 1);
+            if (old == 0 || (table.get(index) ^ old) == hash) {
+                victim = index;
+                break;
+            }
+            int oldTwists = (int) (old & TWISTS_MASK);
+            if (oldTwists < victimTwists) {
+                victim = index;
+                victimTwists = oldTwists;
+            }
+        }
+
+        long check = table.get(victim);
+        if (table.compareAndSet(victim, check, hash ^ data)) {
+            table.set(victim + 1, data);
+        }
+    }
+
+}
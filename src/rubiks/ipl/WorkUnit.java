@@ -0,0 +1,170 @@
+package rubiks.ipl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * @author Vittorio Massaro
+ *
+ * Work a slave has to report the result of: a batch received from the master, or jobs lent by another slave.
+ * The local threads take the jobs one at a time. An idle thread asks the busy ones to split their search,
+ * and the jobs split off are taken by the idle threads or lent to other slaves.
+ * The work is finished when all jobs are solved and all jobs lent have been given back,
+ * so a slave only reports its result when the results of everything it lent are in it.
+ */
+public class WorkUnit {
+	/*
+	 * Jobs not taken yet. Local threads take from the back, other slaves from the front,
+	 * which has the jobs split off highest in the search.
+	 */
+	LinkedList<Cube> jobs = new LinkedList<Cube>();
+	/*
+	 * Number of jobs being solved by the local threads, and number of loans to other slaves not given back yet.
+	 */
+	int active = 0;
+	int loans = 0;
+	/*
+	 * The solutions found, and their twists if the solutions are printed.
+	 */
+	int solutions = 0;
+	List<int[]> paths = new ArrayList<int[]>();
+	/*
+	 * Set when jobs are needed: the next local thread that checks splits its search.
+	 */
+	volatile boolean splitRequest = false;
+	/**
+	 * Creates the work.
+	 *
+	 * @param cubes
+	 * 		The jobs, null elements are skipped.
+	 */
+	public WorkUnit(Cube[] cubes)
+	{
+		for ( Cube cube : cubes )
+		{
+			if ( cube != null ) jobs.add(cube);
+		}
+	}
+	/**
+	 * Returns the number of jobs not taken yet.
+	 *
+	 * @return the number of jobs.
+	 */
+	public synchronized int size()
+	{
+		return jobs.size();
+	}
+	/**
+	 * Takes a job for a local thread, waiting for jobs to be split off if there are none left.
+	 *
+	 * @return the job, or null if the work is finished.
+	 */
+	public synchronized Cube take() throws InterruptedException
+	{
+		while ( jobs.isEmpty() )
+		{
+			if ( active == 0 && loans == 0 ) return null;
+			if ( active > 0 ) splitRequest = true;
+			wait();
+		}
+		active++;
+		return jobs.pollLast();
+	}
+	/**
+	 * Adds jobs split off a search.
+	 *
+	 * @param cubes
+	 * 		The jobs.
+	 */
+	public synchronized void add(Cube[] cubes)
+	{
+		jobs.addAll(Arrays.asList(cubes));
+		notifyAll();
+	}
+	/**
+	 * Called by a local thread when a job is solved.
+	 *
+	 * @param found
+	 * 		The number of solutions found.
+	 * @param foundPaths
+	 * 		The twists of the solutions found.
+	 */
+	public synchronized void done(int found, List<int[]> foundPaths)
+	{
+		solutions += found;
+		if ( Rubiks.PRINT_SOLUTION ) paths.addAll(foundPaths);
+		active--;
+		notifyAll();
+	}
+	/**
+	 * Lends half of the jobs not taken yet to another slave. If there are none, the local threads are asked
+	 * to split their search, and the jobs they split off are waited for.
+	 *
+	 * @param timeout
+	 * 		The maximum time to wait for jobs, in milliseconds.
+	 * @return the jobs lent, or null if there are none.
+	 */
+	public synchronized Cube[] lend(long timeout) throws InterruptedException
+	{
+		if ( jobs.isEmpty() && active > 0 )
+		{
+			splitRequest = true;
+			wait(timeout);
+		}
+		if ( jobs.isEmpty() ) return null;
+		Cube[] result = new Cube[(jobs.size() + 1) / 2];
+		for ( int i = 0; i < result.length; i++ )
+		{
+			result[i] = jobs.pollFirst();
+		}
+		loans++;
+		return result;
+	}
+	/**
+	 * Takes back jobs which could not be lent after all.
+	 *
+	 * @param cubes
+	 * 		The jobs returned by lend().
+	 */
+	public synchronized void unlend(Cube[] cubes)
+	{
+		jobs.addAll(Arrays.asList(cubes));
+		loans--;
+		notifyAll();
+	}
+	/**
+	 * Called when another slave gives back the result of jobs lent.
+	 *
+	 * @param found
+	 * 		The number of solutions found in the jobs.
+	 * @param foundPaths
+	 * 		The twists of the solutions found.
+	 */
+	public synchronized void returned(int found, List<int[]> foundPaths)
+	{
+		solutions += found;
+		if ( Rubiks.PRINT_SOLUTION ) paths.addAll(foundPaths);
+		loans--;
+		notifyAll();
+	}
+	/**
+	 * Returns the number of solutions found. Only complete once the work is finished.
+	 *
+	 * @return the number of solutions.
+	 */
+	public synchronized int getSolutions()
+	{
+		return solutions;
+	}
+	/**
+	 * Returns the twists of the solutions found, only if the solutions are printed.
+	 *
+	 * @return the twists of each solution.
+	 */
+	public synchronized int[][] getPaths()
+	{
+		return paths.toArray(new int[0][]);
+	}
+}
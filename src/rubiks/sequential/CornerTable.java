@@ -0,0 +1,434 @@
+package rubiks.sequential;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Table with the exact number of twists needed to solve the corners of a
+ * cube, for every possible state of the corners.
+ *
+ * Twists never move the top-left-front corner (row 0 is never twisted), and
+ * every twist moves the other seven corners the same way a twist of a cube of
+ * size 2 does. The corners of a cube of any size therefore behave like a cube
+ * of size 2 with 7! * 3^6 = 3674160 states. For a cube of size 2 this table
+ * gives the exact distance to the solution, for larger cubes it is an
+ * admissible heuristic (a pattern database).
+ *
+ * The table is built by a TableBuilder, and can be saved to a file to not
+ * build it again.
+ *
+ */
+public class CornerTable {
+
+    // number of corners, corner 0 is the one that never moves
+    static final int CORNERS = 8;
+
+    // number of different twists of the corners: 3 axes, 2 directions
+    static final int MOVES = 6;
+
+    // number of states of the corners
+    public static final int STATES = 5040 * 729;
+
+    // memory needed to build the table, in bytes
+    public static final long MEMORY = TableBuilder.memory(STATES);
+
+    // the elements of each corner, clockwise seen from outside the cube,
+    // starting with the element on the top or bottom side. A row or column
+    // of 1 means the last row or column of the cube.
+    private static final int[][] SIDE = { { Cube.TOP, Cube.FRONT, Cube.LEFT },
+            { Cube.TOP, Cube.RIGHT, Cube.FRONT },
+            { Cube.TOP, Cube.BACK, Cube.RIGHT },
+            { Cube.TOP, Cube.LEFT, Cube.BACK },
+            { Cube.BOTTOM, Cube.FRONT, Cube.RIGHT },
+            { Cube.BOTTOM, Cube.LEFT, Cube.FRONT },
+            { Cube.BOTTOM, Cube.BACK, Cube.LEFT },
+            { Cube.BOTTOM, Cube.RIGHT, Cube.BACK } };
+
+    private static final int[][] ROW = { { 1, 0, 0 }, { 1, 0, 0 },
+            { 0, 0, 0 }, { 0, 0, 0 }, { 0, 1, 1 }, { 0, 1, 1 }, { 1, 1, 1 },
+            { 1, 1, 1 } };
+
+    private static final int[][] COLUMN = { { 0, 0, 1 }, { 1, 0, 1 },
+            { 1, 0, 1 }, { 0, 0, 1 }, { 1, 1, 0 }, { 0, 1, 0 }, { 0, 1, 0 },
+            { 1, 1, 0 } };
+
+    private static final int[] FACTORIAL = { 1, 1, 2, 6, 24, 120, 720, 5040 };
+
+    // for each corner twist: new position and change of orientation of the
+    // corner at each position
+    private final int[][] moveTo = new int[MOVES][CORNERS];
+
+    private final int[][] moveTwist = new int[MOVES][CORNERS];
+
+    // corner at a position when solved, indexed by the colors as a bit mask
+    private final int[] cornerOf = new int[1 << Cube.SIDES];
+
+    // number of twists needed for each state (see TableBuilder.get())
+    private final long[] distances;
+
+    /**
+     * Builds the table with a breadth first search from the solved state.
+     * Needs MEMORY bytes while building.
+     *
+     * @param threads
+     *            number of threads to build with
+     * @param progress
+     *            stream to report the progress of the build to, or null
+     */
+    public CornerTable(int threads, PrintStream progress)
+            throws InterruptedException, ExecutionException {
+        init();
+
+        // the permutation and the orientation of the corners change
+        // independently, so a twist of a state can be looked up per part
+        final int[][] permutationMove = new int[5040][MOVES];
+        final int[][] orientationMove = new int[729][MOVES];
+        int[] permutation = new int[CORNERS];
+        int[] orientation = new int[CORNERS];
+        int[] newPermutation = new int[CORNERS];
+        int[] newOrientation = new int[CORNERS];
+
+        for (int part = 0; part < 5040; part++) {
+            decode(part * 729, permutation, orientation);
+            for (int move = 0; move < MOVES; move++) {
+                apply(move, permutation, orientation, newPermutation,
+                        newOrientation);
+                permutationMove[part][move] = encode(newPermutation,
+                        newOrientation) / 729;
+            }
+        }
+        for (int part = 0; part < 729; part++) {
+            decode(part, permutation, orientation);
+            for (int move = 0; move < MOVES; move++) {
+                apply(move, permutation, orientation, newPermutation,
+                        newOrientation);
+                orientationMove[part][move] = encode(newPermutation,
+                        newOrientation) % 729;
+            }
+        }
+
+        TableBuilder builder = new TableBuilder(new TableBuilder.Space() {
+            public long size() {
+                return STATES;
+            }
+
+            public int moves() {
+                return MOVES;
+            }
+
+            public long twist(long state, int move) {
+                int index = (int) state;
+                return permutationMove[index / 729][move] * 729
+                        + orientationMove[index % 729][move];
+            }
+        }, threads);
+        builder.setProgress(progress);
+        distances = builder.build(0);
+
+        for (int state = 0; state < STATES; state++) {
+            if (distance(state) == TableBuilder.UNREACHED) {
+                throw new Error("corner table incomplete: state " + state
+                        + " not reached");
+            }
+        }
+    }
+
+    /**
+     * Reads a table saved by write().
+     *
+     * @param file
+     *            the file to read
+     */
+    public CornerTable(File file) throws IOException {
+        init();
+        distances = TableBuilder.read(file, STATES);
+    }
+
+    /**
+     * Saves the table to a file.
+     *
+     * @param file
+     *            the file to write
+     */
+    public void write(File file) throws IOException {
+        TableBuilder.write(distances, file);
+    }
+
+    /**
+     * Returns a heuristic for the given cube and all cubes created from it by
+     * twisting. The colors of the corner that never moves determine which
+     * color belongs on which side.
+     *
+     * @param cube
+     *            the cube to solve
+     * @return the heuristic, or null if the corners of the cube are not in a
+     *         valid state
+     */
+    public Heuristic heuristic(Cube cube) {
+        // the side each color belongs to
+        final byte[] sideOf = new byte[Cube.SIDES];
+        int[] opposite = opposites(cube);
+        if (opposite == null) {
+            return null;
+        }
+        int top = element(cube, 0, 0);
+        int front = element(cube, 0, 1);
+        int left = element(cube, 0, 2);
+
+        sideOf[top] = Cube.TOP;
+        sideOf[front] = Cube.FRONT;
+        sideOf[left] = Cube.LEFT;
+        sideOf[opposite[top]] = Cube.BOTTOM;
+        sideOf[opposite[front]] = Cube.BACK;
+        sideOf[opposite[left]] = Cube.RIGHT;
+
+        int used = 0;
+        for (int color = 0; color < Cube.SIDES; color++) {
+            used |= 1 << sideOf[color];
+        }
+        if (used != (1 << Cube.SIDES) - 1) {
+            return null;
+        }
+
+        if (encode(cube, sideOf, new int[CORNERS], new int[CORNERS]) < 0) {
+            return null;
+        }
+
+        // not thread safe: every search needs its own heuristic
+        return new Heuristic() {
+            private final int[] permutation = new int[CORNERS];
+            private final int[] orientation = new int[CORNERS];
+
+            public int estimate(Cube twisted) {
+                int state = encode(twisted, sideOf, permutation, orientation);
+                if (state < 0) {
+                    return 0;
+                }
+                return TableBuilder.get(distances, state);
+            }
+        };
+    }
+
+    /**
+     * Returns the number of twists needed to solve the corners of a state.
+     *
+     * @param state
+     *            the state
+     * @return the number of twists needed
+     */
+    public int distance(int state) {
+        return TableBuilder.get(distances, state);
+    }
+
+    /**
+     * Initializes the twists and corners, needed to encode the corners of a
+     * cube.
+     */
+    private void init() {
+        initMoves();
+
+        for (int i = 0; i < cornerOf.length; i++) {
+            cornerOf[i] = -1;
+        }
+        for (int corner = 0; corner < CORNERS; corner++) {
+            int mask = 0;
+            for (int i = 0; i < 3; i++) {
+                mask |= 1 << SIDE[corner][i];
+            }
+            cornerOf[mask] = corner;
+        }
+    }
+
+    /**
+     * Computes the corner twists from the twists of a cube of size 2, by
+     * following where each element of the corners ends up.
+     */
+    private void initMoves() {
+        Cube labeled = new Cube(2);
+        for (int corner = 0; corner < CORNERS; corner++) {
+            for (int i = 0; i < 3; i++) {
+                labeled.setElement(SIDE[corner][i], ROW[corner][i],
+                        COLUMN[corner][i], (byte) (corner * 3 + i));
+            }
+        }
+
+        for (int move = 0; move < MOVES; move++) {
+            Cube twisted = new Cube(labeled);
+            twisted.twist(move);
+
+            for (int corner = 0; corner < CORNERS; corner++) {
+                for (int i = 0; i < 3; i++) {
+                    int label = twisted.getElement(SIDE[corner][i],
+                            ROW[corner][i], COLUMN[corner][i]);
+                    int from = label / 3;
+                    int twist = (i - (label % 3) + 3) % 3;
+
+                    if (i > 0 && moveTwist[move][from] != twist) {
+                        throw new Error("inconsistent corner layout");
+                    }
+                    moveTo[move][from] = corner;
+                    moveTwist[move][from] = twist;
+                }
+            }
+            if (moveTo[move][0] != 0) {
+                throw new Error("corner 0 should never move");
+            }
+        }
+    }
+
+    /**
+     * Applies a corner twist.
+     */
+    void apply(int move, int[] permutation, int[] orientation,
+            int[] newPermutation, int[] newOrientation) {
+        for (int from = 1; from < CORNERS; from++) {
+            int to = moveTo[move][from];
+            newPermutation[to] = permutation[from];
+            newOrientation[to] = (orientation[from] + moveTwist[move][from]) % 3;
+        }
+    }
+
+    /**
+     * Returns the color of an element of a corner of a cube.
+     */
+    private static int element(Cube cube, int corner, int i) {
+        int last = cube.getSize() - 1;
+        return cube.getElement(SIDE[corner][i], ROW[corner][i] * last,
+                COLUMN[corner][i] * last);
+    }
+
+    /**
+     * Finds the opposite of each color: the one color it never shares a
+     * corner with.
+     *
+     * @return the opposite of each color, or null if the corners are invalid
+     */
+    private static int[] opposites(Cube cube) {
+        boolean[][] together = new boolean[Cube.SIDES][Cube.SIDES];
+        for (int corner = 0; corner < CORNERS; corner++) {
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    together[element(cube, corner, i)][element(cube, corner,
+                            j)] = true;
+                }
+            }
+        }
+
+        int[] result = new int[Cube.SIDES];
+        for (int color = 0; color < Cube.SIDES; color++) {
+            result[color] = -1;
+            for (int other = 0; other < Cube.SIDES; other++) {
+                if (!together[color][other]) {
+                    if (result[color] != -1) {
+                        return null;
+                    }
+                    result[color] = other;
+                }
+            }
+            if (result[color] == -1) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encodes the corners of a cube.
+     *
+     * @return the state, or -1 if the corners are not in a valid state
+     */
+    int encode(Cube cube, byte[] sideOf, int[] permutation, int[] orientation) {
+        int last = cube.getSize() - 1;
+        int seen = 0;
+
+        for (int position = 1; position < CORNERS; position++) {
+            int mask = 0;
+            int twist = -1;
+            for (int i = 0; i < 3; i++) {
+                int side = sideOf[cube.getElement(SIDE[position][i],
+                        ROW[position][i] * last, COLUMN[position][i] * last)];
+                mask |= 1 << side;
+                if (side == Cube.TOP || side == Cube.BOTTOM) {
+                    twist = i;
+                }
+            }
+            int corner = cornerOf[mask];
+            if (corner <= 0 || (seen & (1 << corner)) != 0) {
+                return -1;
+            }
+            seen |= 1 << corner;
+            permutation[position] = corner;
+            orientation[position] = twist;
+        }
+
+        return encode(permutation, orientation);
+    }
+
+    /**
+     * Encodes a permutation and orientation of the corners 1 to 7.
+     *
+     * @return the state, or -1 if the orientation is not valid
+     */
+    static int encode(int[] permutation, int[] orientation) {
+        int rank = 0;
+        for (int i = 1; i < CORNERS; i++) {
+            int smaller = 0;
+            for (int j = i + 1; j < CORNERS; j++) {
+                if (permutation[j] < permutation[i]) {
+                    smaller++;
+                }
+            }
+            rank += smaller * FACTORIAL[CORNERS - 1 - i];
+        }
+
+        // the orientation of the last corner follows from the others
+        int twists = 0;
+        int sum = 0;
+        for (int i = 1; i < CORNERS - 1; i++) {
+            twists = twists * 3 + orientation[i];
+            sum += orientation[i];
+        }
+        if ((sum + orientation[CORNERS - 1]) % 3 != 0) {
+            return -1;
+        }
+
+        return rank * 729 + twists;
+    }
+
+    /**
+     * Decodes a state into a permutation and orientation of the corners 1 to
+     * 7.
+     */
+    static void decode(int state, int[] permutation, int[] orientation) {
+        int rank = state / 729;
+        int twists = state % 729;
+
+        int sum = 0;
+        for (int i = CORNERS - 2; i >= 1; i--) {
+            orientation[i] = twists % 3;
+            sum += orientation[i];
+            twists /= 3;
+        }
+        orientation[CORNERS - 1] = (3 - (sum % 3)) % 3;
+
+        // corners not used yet, in increasing order
+        int used = 0;
+        for (int i = 1; i < CORNERS; i++) {
+            int smaller = rank / FACTORIAL[CORNERS - 1 - i];
+            rank %= FACTORIAL[CORNERS - 1 - i];
+            for (int corner = 1; corner < CORNERS; corner++) {
+                if ((used & (1 << corner)) == 0) {
+                    if (smaller == 0) {
+                        permutation[i] = corner;
+                        used |= 1 << corner;
+                        break;
+                    }
+                    smaller--;
+                }
+            }
+        }
+    }
+
+}
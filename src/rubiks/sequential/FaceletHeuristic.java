@@ -0,0 +1,29 @@
+package rubiks.sequential;
+
+/**
+ * Heuristic for cubes of any size, without any tables. A twist changes the
+ * elements of at most 4 * (size - 1) rows of the sides around its axis (the
+ * side it rotates keeps its colors), and each changed element lowers the
+ * number of misplaced elements (see Cube.misplaced()) by at most one.
+ *
+ */
+public class FaceletHeuristic implements Heuristic {
+
+    // maximum number of elements changing side in a single twist
+    private final int maxChanged;
+
+    /**
+     * Constructor.
+     *
+     * @param cubeSize
+     *            size of the cubes to estimate
+     */
+    public FaceletHeuristic(int cubeSize) {
+        maxChanged = 4 * (cubeSize - 1) * cubeSize;
+    }
+
+    public int estimate(Cube cube) {
+        return (cube.misplaced() + maxChanged - 1) / maxChanged;
+    }
+
+}
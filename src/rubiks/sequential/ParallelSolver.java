@@ -0,0 +1,179 @@
+package rubiks.sequential;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Multi-threaded solver for a single bound, using a fork/join pool. Cubes
+ * with less than a cutoff number of twists are split into their children,
+ * which are solved in parallel. Cubes at the cutoff are searched by the worker
+ * thread which takes them, with a search (and cube cache) of its own.
+ *
+ * Gives the same number of solutions as a single Search of the same cube.
+ *
+ */
+public class ParallelSolver {
+
+    // twists the search of a cube is paused after, to check if another
+    // worker found the first solution
+    private static final long STEP = 1 << 16;
+
+    // number of tasks per thread aimed for, so threads which finish early
+    // can take over work from others
+    private static final int TASKS_PER_THREAD = 16;
+
+    private final ForkJoinPool pool;
+
+    // cubes with less twists than this are split
+    private final int cutoff;
+
+    private final boolean firstSolution;
+
+    // search of each worker thread, each with its own cache and heuristic
+    private final ThreadLocal<Search> searches;
+
+    // set once a solution is found, if only the first solution is needed
+    private volatile boolean found;
+
+    // twists of the solutions found, if solutions are printed
+    private final ConcurrentLinkedQueue<int[]> paths = new ConcurrentLinkedQueue<int[]>();
+
+    /**
+     * Constructor.
+     *
+     * @param threads
+     *            number of worker threads
+     * @param root
+     *            the cube to solve, or a cube with the same colors on the
+     *            fixed corner
+     * @param ordering
+     *            try the most promising twists first
+     * @param firstSolution
+     *            stop at the first solution instead of counting all of them
+     * @param strategy
+     *            engine to solve the cube with
+     * @param table
+     *            corner table used by the engine, or null if none
+     * @param transpositions
+     *            transposition table shared by all threads, or null if none
+     */
+    public ParallelSolver(int threads, final Cube root,
+            final boolean ordering, final boolean firstSolution,
+            final String strategy, final CornerTable table,
+            final TranspositionTable transpositions) {
+        this.firstSolution = firstSolution;
+        pool = new ForkJoinPool(threads);
+
+        int tasks = 1;
+        int depth = 0;
+        while (tasks < threads * TASKS_PER_THREAD) {
+            tasks *= root.getMoves();
+            depth++;
+        }
+        cutoff = depth;
+
+        searches = new ThreadLocal<Search>() {
+            protected Search initialValue() {
+                Search search = new Search(new CubeCache(root.getSize()));
+                search.setOrdering(ordering);
+                search.setFirstSolution(firstSolution);
+                search.setHeuristic(Rubiks.createHeuristic(strategy, table,
+                        root));
+                search.setTable(transpositions);
+                return search;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of solutions of a cube within its bound.
+     *
+     * @param cube
+     *            the cube to solve
+     * @return the number of solutions found
+     */
+    public int solutions(Cube cube) {
+        found = false;
+        return pool.invoke(new Task(cube));
+    }
+
+    /**
+     * Returns the twists of the solutions found so far. Only recorded if
+     * Rubiks.PRINT_SOLUTION is set.
+     *
+     * @return the twists of each solution found
+     */
+    public List<int[]> getPaths() {
+        return new ArrayList<int[]>(paths);
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Solves a single cube, splitting it if it has less twists than the
+     * cutoff.
+     */
+    private class Task extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Cube cube;
+
+        Task(Cube cube) {
+            this.cube = cube;
+        }
+
+        protected Integer compute() {
+            if (found) {
+                return 0;
+            }
+
+            Search search = searches.get();
+
+            if (cube.getTwists() >= cutoff || cube.isSolved()
+                    || cube.getTwists() + 1 >= cube.getBound()) {
+                search.reset(cube);
+                while (!search.step(STEP)) {
+                    if (found) {
+                        return 0;
+                    }
+                }
+                return done(search);
+            }
+
+            Cube[] children = cube.generateChildren(search.getCache());
+            Task[] tasks = new Task[children.length];
+            for (int i = 0; i < children.length; i++) {
+                tasks[i] = new Task(children[i]);
+            }
+            invokeAll(tasks);
+
+            int result = 0;
+            for (Task task : tasks) {
+                result += task.join();
+            }
+            return result;
+        }
+
+        private int done(Search search) {
+            int result = search.getSolutions();
+            if (Rubiks.PRINT_SOLUTION) {
+                paths.addAll(search.getPaths());
+                search.clearPaths();
+            }
+            if (result > 0 && firstSolution) {
+                found = true;
+            }
+            return result;
+        }
+    }
+
+}
@@ -1,5 +1,9 @@
 package rubiks.sequential;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
 /**
  * Solver for rubik's cube puzzle.
  * 
@@ -10,47 +14,118 @@ public class Rubiks {
     
     public static final boolean PRINT_SOLUTION = false;
 
+    // engines which can be used to solve a cube: search all cubes, use the
+    // corner table as exact distance (size 2) or as pattern database (larger
+    // sizes), or use a heuristic which needs no memory
+    static final String BRUTEFORCE = "bruteforce";
+    static final String TABLE = "table";
+    static final String PDB = "pdb";
+    static final String HEURISTIC = "heuristic";
+
+    // scrambles of at most this number of twists are solved faster than the
+    // corner table can be built
+    static final int SHALLOW_TWISTS = 5;
+
     /**
-     * Recursive function to find a solution for a given cube. Only searches to
-     * the bound set in the cube object.
+     * Picks the engine to solve a cube with, from the size of the cube, the
+     * number of twists it may need and the memory available.
      * 
      * @param cube
-     *            cube to solve
-     * @param cache
-     *            cache of cubes used for new cube objects
-     * @return the number of solutions found
+     *            the cube to solve
+     * @param maxTwists
+     *            upper bound on the twists needed, or -1 if unknown
+     * @param memory
+     *            memory which may be used for tables, in bytes
+     * @return the engine to use
      */
-    private static int solutions(Cube cube, CubeCache cache) {
-        if (cube.isSolved()) {
-            return 1;
+    static String chooseStrategy(Cube cube, int maxTwists, long memory) {
+        if (maxTwists >= 0 && maxTwists <= SHALLOW_TWISTS) {
+            return BRUTEFORCE;
         }
-
-        if (cube.getTwists() >= cube.getBound()) {
-            return 0;
+        if (CornerTable.MEMORY > memory) {
+            return HEURISTIC;
+        }
+        if (cube.getSize() == 2) {
+            return TABLE;
         }
+        return PDB;
+    }
 
-        // generate all possible cubes from this one by twisting it in
-        // every possible way. Gets new objects from the cache
-        Cube[] children = cube.generateChildren(cache);
+    /**
+     * Builds the corner table of an engine, or reads it from a file.
+     * 
+     * @param strategy
+     *            the engine
+     * @param threads
+     *            number of threads to build the table with
+     * @param tableFile
+     *            file the table is read from if it exists, and saved to
+     *            otherwise, or null to always build the table
+     * @return the table, or null if the engine does not use one
+     */
+    private static CornerTable createTable(String strategy, int threads,
+            File tableFile) {
+        if (!strategy.equals(TABLE) && !strategy.equals(PDB)) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        if (tableFile != null && tableFile.exists()) {
+            try {
+                CornerTable result = new CornerTable(tableFile);
+                long end = System.currentTimeMillis();
+                System.err.println("Reading corner table took "
+                        + (end - start) + " milliseconds");
+                return result;
+            } catch (IOException e) {
+                System.err.println("Cannot read corner table, building it: "
+                        + e);
+            }
+        }
 
-        int result = 0;
+        CornerTable result = null;
+        try {
+            result = new CornerTable(threads, System.err);
+        } catch (Exception e) {
+            System.err.println("Cannot build corner table: " + e);
+            System.exit(1);
+        }
+        long end = System.currentTimeMillis();
+        System.err.println("Building corner table took " + (end - start)
+                + " milliseconds");
 
-        for (Cube child : children) {
-            // recursion step
-            int childSolutions = solutions(child, cache);
-            if (childSolutions > 0) {
-                result += childSolutions;
-                if (PRINT_SOLUTION) {
-                    child.print(System.err);
-                }
+        if (tableFile != null) {
+            try {
+                result.write(tableFile);
+            } catch (IOException e) {
+                System.err.println("Cannot save corner table: " + e);
             }
-            // put child object in cache
-            cache.put(child);
         }
-
         return result;
     }
 
+    /**
+     * Creates the heuristic of an engine. Heuristics are not thread safe,
+     * each thread needs one of its own.
+     * 
+     * @param strategy
+     *            the engine
+     * @param table
+     *            the corner table of the engine, or null if none
+     * @param cube
+     *            the cube to solve
+     * @return the heuristic, or null to search without heuristic
+     */
+    static Heuristic createHeuristic(String strategy, CornerTable table,
+            Cube cube) {
+        if (strategy.equals(HEURISTIC)) {
+            return new FaceletHeuristic(cube.getSize());
+        }
+        if (table != null) {
+            return table.heuristic(cube);
+        }
+        return null;
+    }
+
     /**
      * Solves a Rubik's cube by iteratively searching for solutions with a
      * greater depth. This guarantees the optimal solution is found. Repeats all
@@ -58,11 +133,54 @@ public class Rubiks {
      * 
      * @param cube
      *            the cube to solve
+     * @param ordering
+     *            try the most promising twists first
+     * @param firstSolution
+     *            stop at the first solution instead of counting all of them
+     * @param strategy
+     *            engine to solve the cube with
+     * @param threads
+     *            number of threads to solve the cube with
+     * @param transpositions
+     *            memory for the transposition table in MB, 0 for none
+     * @param table
+     *            the corner table of the engine, or null if none
      */
-    private static void solve(Cube cube) {
-        // cache used for cube objects. Doing new Cube() for every move
-        // overloads the garbage collector
-        CubeCache cache = new CubeCache(cube.getSize());
+    private static void solve(Cube cube, boolean ordering,
+            boolean firstSolution, String strategy, int threads,
+            int transpositions, CornerTable table) {
+        if (PRINT_SOLUTION) {
+            cube.setPath(new int[0]);
+        }
+        if (table != null && table.heuristic(cube) == null) {
+            System.err.println("Corners of cube are not valid,"
+                    + " searching without table");
+        }
+
+        // shared by all threads
+        TranspositionTable transpositionTable = null;
+        if (transpositions > 0) {
+            transpositionTable = new TranspositionTable(transpositions);
+            System.err.println("Using transposition table of "
+                    + transpositionTable.getEntries() + " entries");
+        }
+
+        Search search = null;
+        ParallelSolver solver = null;
+        if (threads > 1) {
+            // every worker thread gets a search and cache of its own
+            solver = new ParallelSolver(threads, cube, ordering,
+                    firstSolution, strategy, table, transpositionTable);
+        } else {
+            // cache used for cube objects. Doing new Cube() for every move
+            // overloads the garbage collector
+            CubeCache cache = new CubeCache(cube.getSize());
+            search = new Search(cache);
+            search.setOrdering(ordering);
+            search.setFirstSolution(firstSolution);
+            search.setHeuristic(createHeuristic(strategy, table, cube));
+            search.setTable(transpositionTable);
+        }
         int bound = 0;
         int result = 0;
 
@@ -73,12 +191,36 @@ public class Rubiks {
             cube.setBound(bound);
 
             System.out.print(" " + bound);
-            result = solutions(cube, cache);
+            if (solver != null) {
+                result = solver.solutions(cube);
+            } else {
+                result = search.solutions(cube);
+            }
+        }
+        if (solver != null) {
+            solver.shutdown();
         }
 
         System.out.println();
-        System.out.println("Solving cube possible in " + result + " ways of "
-                + bound + " steps");
+        if (firstSolution) {
+            System.out.println("Solving cube possible in " + bound
+                    + " steps (first solution only)");
+        } else {
+            System.out.println("Solving cube possible in " + result
+                    + " ways of " + bound + " steps");
+        }
+
+        if (PRINT_SOLUTION) {
+            List<int[]> paths = solver != null ? solver.getPaths() : search
+                    .getPaths();
+            if (firstSolution && paths.size() > 1) {
+                paths = paths.subList(0, 1);
+            }
+            for (int[] path : paths) {
+                System.err.println("Solution: "
+                        + Cube.movesToString(path, cube.getSize()));
+            }
+        }
     }
 
     public static void printUsage() {
@@ -98,7 +240,19 @@ public class Rubiks {
         System.out
                 .println("--seed SEED\t\tSeed of random generator (default: 0");
         System.out
-                .println("--threads THREADS\t\tNumber of threads to use (default: 1, other values not supported by sequential version)");
+                .println("--threads THREADS\tNumber of threads to use (default: 1)");
+        System.out
+                .println("--first\t\t\tStop at the first solution instead of counting all of them");
+        System.out
+                .println("--ordering\t\tTry the most promising twists first");
+        System.out
+                .println("--strategy STRATEGY\tEngine to use: bruteforce, table, pdb or heuristic (default: chosen from size, twists and memory)");
+        System.out
+                .println("--memory MB\t\tMemory available for tables (default: half the heap)");
+        System.out
+                .println("--transpositions MB\tMemory of the transposition table shared by all threads (default: 0, no table)");
+        System.out
+                .println("--table-file FILE\tRead the corner table from FILE, or save it there after building it");
         System.out.println("");
         System.out
                 .println("--file FILE_NAME\t\tLoad cube from given file instead of generating it");
@@ -119,9 +273,15 @@ public class Rubiks {
         int twists = 11;
         int seed = 0;
         String fileName = null;
+        boolean ordering = false;
+        boolean firstSolution = false;
+        String strategy = null;
+        long memory = Runtime.getRuntime().maxMemory() / 2;
+        int transpositions = 0;
+        File tableFile = null;
 
         // number of threads used to solve puzzle
-        // (not used in sequential version)
+        int threads = 1;
 
         for (int i = 0; i < arguments.length; i++) {
             if (arguments[i].equalsIgnoreCase("--size")) {
@@ -133,9 +293,40 @@ public class Rubiks {
             } else if (arguments[i].equalsIgnoreCase("--seed")) {
                 i++;
                 seed = Integer.parseInt(arguments[i]);
+            } else if (arguments[i].equalsIgnoreCase("--threads")) {
+                i++;
+                threads = Integer.parseInt(arguments[i]);
+                if (threads < 1) {
+                    System.err.println("number of threads must be positive: "
+                            + threads);
+                    System.exit(1);
+                }
             } else if (arguments[i].equalsIgnoreCase("--file")) {
                 i++;
                 fileName = arguments[i];
+            } else if (arguments[i].equalsIgnoreCase("--ordering")) {
+                ordering = true;
+            } else if (arguments[i].equalsIgnoreCase("--first")) {
+                firstSolution = true;
+            } else if (arguments[i].equalsIgnoreCase("--strategy")) {
+                i++;
+                strategy = arguments[i].toLowerCase();
+                if (!strategy.equals(BRUTEFORCE) && !strategy.equals(TABLE)
+                        && !strategy.equals(PDB)
+                        && !strategy.equals(HEURISTIC)) {
+                    System.err.println("unknown strategy : " + arguments[i]);
+                    printUsage();
+                    System.exit(1);
+                }
+            } else if (arguments[i].equalsIgnoreCase("--transpositions")) {
+                i++;
+                transpositions = Integer.parseInt(arguments[i]);
+            } else if (arguments[i].equalsIgnoreCase("--table-file")) {
+                i++;
+                tableFile = new File(arguments[i]);
+            } else if (arguments[i].equalsIgnoreCase("--memory")) {
+                i++;
+                memory = Long.parseLong(arguments[i]) * 1024 * 1024;
             } else if (arguments[i].equalsIgnoreCase("--help") || arguments[i].equalsIgnoreCase("-h")) {
                 printUsage();
                 System.exit(0);
@@ -165,9 +356,20 @@ public class Rubiks {
         System.out.flush();
 
         
+        if (strategy == null) {
+            strategy = chooseStrategy(cube, fileName == null ? twists : -1,
+                    memory);
+        }
+        System.err.println("Using strategy " + strategy);
+
+        // the corner table is built or read before the timer starts, its own
+        // time is printed on standard error
+        CornerTable table = createTable(strategy, threads, tableFile);
+
         // solve
         long start = System.currentTimeMillis();
-        solve(cube);
+        solve(cube, ordering, firstSolution, strategy, threads,
+                transpositions, table);
         long end = System.currentTimeMillis();
 
         // NOTE: this is printed to standard error! The rest of the output is
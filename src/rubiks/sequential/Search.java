@@ -0,0 +1,631 @@
+package rubiks.sequential;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Iterative depth-first search for the solutions of a cube. Only searches to
+ * the bound set in the root cube.
+ *
+ * Instead of recursing, the search keeps an explicit stack with one frame per
+ * depth: the cube at that depth, the next twist to try and the number of
+ * solutions found below it so far. The state of the search can therefore be
+ * inspected, paused and resumed (see step()), and unexplored siblings can be
+ * given away to other solvers (see split()).
+ *
+ * Optionally the children of each cube are tried in order of their estimated
+ * distance to the solution (see setOrdering()), and the search can stop at the
+ * first solution found (see setFirstSolution()). Together these make finding a
+ * single optimal solution a lot faster. A heuristic can be used to skip cubes
+ * which cannot be solved within the bound (see setHeuristic()), and a table to
+ * not search cubes reached before again (see setTable()).
+ *
+ * If Rubiks.PRINT_SOLUTION is set, the twists leading to each solution are
+ * recorded (see getPaths()). As this is a constant, recording costs nothing
+ * when it is disabled.
+ *
+ */
+public class Search {
+
+    // cubes with less twists left are not looked up in the table
+    private static final int MIN_TABLE_TWISTS = 2;
+
+    // prefix of a root without twists
+    private static final int[] NO_TWISTS = new int[0];
+
+    private final CubeCache cache;
+
+    // cubes[0] is the root, cubes[d] the cube at depth d. Cubes at depth > 0
+    // are buffers owned by this search and are reused for every node. They
+    // are created by the thread running the search, not taken from the cache,
+    // so they are not next to the buffers of other threads in memory
+    private Cube[] cubes;
+
+    // next twist to try for each depth
+    private int[] next;
+
+    // twist done last at each depth, giving the cube at the next depth; not
+    // always the one before next, as split() skips the twists it gives away
+    private int[] twisted;
+
+    // solutions found so far below each depth
+    private int[] counts;
+
+    // order in which the twists are tried for each depth, if ordering
+    private int[][] order;
+
+    // estimates of the children, used while ordering
+    private int[] estimates;
+
+    // try the most promising children first
+    private boolean ordering;
+
+    // stop at the first solution found
+    private boolean firstSolution;
+
+    // lower bound on the twists still needed, null to search blindly
+    private Heuristic heuristic;
+
+    // solutions of cubes searched before, null to not use a table
+    private TranspositionTable table;
+
+    // if the table is used for the current search
+    private boolean useTable;
+
+    // hash of the cube at each depth, if the table is used
+    private long[] hashes;
+
+    // frames up to this depth gave away siblings (see split()), so their
+    // counts are not complete and must not be stored in the table
+    private int splitDepth;
+
+    // current depth, -1 if the search is finished
+    private int depth;
+
+    // solutions found, valid once the search is finished
+    private int solutions;
+
+    // twists done to get the root cube, if tracked
+    private int[] prefix;
+
+    // if the twists are tracked: when solutions are printed, or when the
+    // root has them, so the jobs split off have them too
+    private boolean tracked;
+
+    // twists of the solutions found, if solutions are printed
+    private final List<int[]> paths = new ArrayList<int[]>();
+
+    /**
+     * Constructor.
+     *
+     * @param cache
+     *            cache used to get the cube buffers from.
+     */
+    public Search(CubeCache cache) {
+        this.cache = cache;
+        cubes = new Cube[0];
+        next = new int[0];
+        twisted = new int[0];
+        counts = new int[0];
+        hashes = new long[0];
+        order = new int[0][];
+        depth = -1;
+    }
+
+    /**
+     * Try the children of each cube in order of the number of misplaced
+     * elements, instead of in the order of generateChildren(). Does not change
+     * the number of solutions found, only the order in which they are found.
+     *
+     * @param ordering
+     *            true to order the children, false to not order them
+     */
+    public void setOrdering(boolean ordering) {
+        this.ordering = ordering;
+    }
+
+    /**
+     * Stop searching once a solution is found. The search then reports only
+     * this one solution.
+     *
+     * @param firstSolution
+     *            true to stop at the first solution, false to find all
+     */
+    public void setFirstSolution(boolean firstSolution) {
+        this.firstSolution = firstSolution;
+    }
+
+    /**
+     * Returns the cache the cube buffers of this search come from.
+     *
+     * @return the cache
+     */
+    public CubeCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Skip cubes which the heuristic says cannot be solved within the bound.
+     * As the heuristic never overestimates, the number of solutions found
+     * does not change.
+     *
+     * @param heuristic
+     *            the heuristic to use, or null to search all cubes
+     */
+    public void setHeuristic(Heuristic heuristic) {
+        this.heuristic = heuristic;
+    }
+
+    /**
+     * Look up and store the number of solutions of the cubes searched in a
+     * table, which may be shared with other searches. Cubes reached again,
+     * by other twists or in a later bound, are then not searched again. Not
+     * used when searching for the first solution only or when solutions are
+     * printed, as those need the twists of the solutions.
+     *
+     * @param table
+     *            the table to use, or null to not use a table
+     */
+    public void setTable(TranspositionTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Start a new search. The root cube is not modified by the search.
+     *
+     * @param root
+     *            cube to solve
+     */
+    public void reset(Cube root) {
+        solutions = 0;
+
+        tracked = Rubiks.PRINT_SOLUTION || root.getPath() != null;
+        prefix = root.getPath() == null ? NO_TWISTS : root.getPath();
+
+        if (root.isSolved()) {
+            depth = -1;
+            solutions = 1;
+            if (Rubiks.PRINT_SOLUTION) {
+                paths.add(prefix);
+            }
+            return;
+        }
+
+        if (root.getTwists() >= root.getBound() || pruned(root)) {
+            depth = -1;
+            return;
+        }
+
+        useTable = table != null && !firstSolution && !Rubiks.PRINT_SOLUTION;
+        splitDepth = -1;
+
+        ensureCapacity(root.getBound() - root.getTwists() + 1, root.getSize());
+
+        cubes[0] = root;
+        next[0] = 0;
+        counts[0] = 0;
+        depth = 0;
+
+        if (useTable && lookup(root, 0)) {
+            solutions = counts[0];
+            depth = -1;
+            return;
+        }
+
+        if (ordering) {
+            orderMoves(0);
+        }
+    }
+
+    /**
+     * Search the cube given to reset() until finished.
+     *
+     * @return the number of solutions found
+     */
+    public int run() {
+        step(Long.MAX_VALUE);
+        return solutions;
+    }
+
+    /**
+     * Convenience function to search a single cube.
+     *
+     * @param cube
+     *            cube to solve
+     * @return the number of solutions found
+     */
+    public int solutions(Cube cube) {
+        reset(cube);
+        return run();
+    }
+
+    /**
+     * Continue the search for at most the given number of twists.
+     *
+     * @param maxTwists
+     *            maximum number of twists to do before returning
+     * @return true if the search is finished, false if it was paused
+     */
+    public boolean step(long maxTwists) {
+        while (depth >= 0) {
+            if (maxTwists-- <= 0) {
+                return false;
+            }
+
+            Cube cube = cubes[depth];
+
+            if (next[depth] == cube.getMoves()) {
+                // all children done, pop this frame
+                int result = counts[depth];
+                if (useTable) {
+                    if (depth > splitDepth) {
+                        store(cube, depth, result);
+                    } else {
+                        splitDepth = depth - 1;
+                    }
+                }
+                depth--;
+                if (depth >= 0) {
+                    counts[depth] += result;
+                } else {
+                    solutions = result;
+                }
+                continue;
+            }
+
+            if (next[depth] == 0 && cube.getBound() - cube.getTwists() == 1) {
+                // the children are at the bound, test them all in one pass
+                int found = leaves(depth);
+                counts[depth] += found;
+                maxTwists -= cube.getMoves() - 1;
+                if (found > 0 && firstSolution) {
+                    depth = -1;
+                    solutions = 1;
+                    return true;
+                }
+                continue;
+            }
+
+            // twist a copy of this cube into the buffer of the next depth
+            Cube child = cubes[depth + 1];
+            cube.copyTo(child);
+            twisted[depth] = move(depth, next[depth]++);
+            child.twist(twisted[depth]);
+
+            if (child.isSolved()) {
+                counts[depth]++;
+                if (Rubiks.PRINT_SOLUTION) {
+                    paths.add(pathTo(depth, twisted[depth]));
+                }
+                if (firstSolution) {
+                    depth = -1;
+                    solutions = 1;
+                    return true;
+                }
+            } else if (child.getTwists() < child.getBound()
+                    && !pruned(child)) {
+                if (useTable && lookup(child, depth + 1)) {
+                    continue;
+                }
+
+                // push a frame for the child
+                depth++;
+                next[depth] = 0;
+                counts[depth] = 0;
+
+                if (ordering) {
+                    orderMoves(depth);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns if the search is finished.
+     *
+     * @return true if finished, false if not
+     */
+    public boolean isFinished() {
+        return depth < 0;
+    }
+
+    /**
+     * Returns the number of solutions found. Only valid if the search is
+     * finished.
+     *
+     * @return the number of solutions found
+     */
+    public int getSolutions() {
+        return solutions;
+    }
+
+    /**
+     * Returns the twists of the solutions found since the last call to
+     * clearPaths(), starting at the cube to solve. Only recorded if
+     * Rubiks.PRINT_SOLUTION is set.
+     *
+     * @return the twists of each solution found
+     */
+    public List<int[]> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Forget the solutions returned by getPaths().
+     */
+    public void clearPaths() {
+        paths.clear();
+    }
+
+    /**
+     * Returns the current depth of the search, -1 if the search is finished.
+     *
+     * @return the current depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the twist done last at the given depth. The twists at depth 0
+     * up to getDepth() - 1 form the path from the root to the current cube.
+     *
+     * @param depth
+     *            depth of the frame ( 0 <= depth <= getDepth() )
+     * @return the number of the twist done last at that depth
+     */
+    public int getMove(int depth) {
+        return twisted[depth];
+    }
+
+    /**
+     * Returns the number of solutions found so far below the given depth.
+     *
+     * @param depth
+     *            depth of the frame ( 0 <= depth <= getDepth() )
+     * @return the number of solutions found so far
+     */
+    public int getCount(int depth) {
+        return counts[depth];
+    }
+
+    /**
+     * Gives away the shallowest unexplored siblings of the search. The
+     * returned cubes are no longer searched by this search; their solutions
+     * have to be counted by the caller.
+     *
+     * @return new cubes to solve, or null if there is nothing to give away
+     */
+    public Cube[] split() {
+        for (int d = 0; d <= depth; d++) {
+            int moves = cubes[d].getMoves();
+            if (next[d] < moves) {
+                splitDepth = Math.max(splitDepth, d);
+                Cube[] result = new Cube[moves - next[d]];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = cache.get();
+                    cubes[d].copyTo(result[i]);
+                    int move = move(d, next[d]++);
+                    result[i].twist(move);
+                    if (tracked) {
+                        result[i].setPath(pathTo(d, move));
+                    }
+                }
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the twists from the cube to solve to a child of the given
+     * depth.
+     *
+     * @param depth
+     *            depth of the parent of the child
+     * @param move
+     *            the twist giving the child
+     * @return the twists done
+     */
+    private int[] pathTo(int depth, int move) {
+        int[] result = new int[prefix.length + depth + 1];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        for (int d = 0; d < depth; d++) {
+            result[prefix.length + d] = getMove(d);
+        }
+        result[prefix.length + depth] = move;
+        return result;
+    }
+
+    /**
+     * Counts the solved children of the cube at the given depth, which is one
+     * twist from the bound, and marks all its twists as tried. The sides of
+     * the cube are tested once for a single color; twists of an axis whose
+     * two rotated sides are not single colored cannot give a solved cube, so
+     * those children are never generated. At the bound only a few cubes have
+     * two single colored sides, so most leaves cost no twist at all.
+     *
+     * @param depth
+     *            depth of the cube
+     * @return the number of solved children, at most 1 if searching for the
+     *         first solution
+     */
+    private int leaves(int depth) {
+        Cube cube = cubes[depth];
+        Cube child = cubes[depth + 1];
+        int moves = cube.getMoves();
+        int uniform = cube.uniformSides();
+        int found = 0;
+
+        for (int i = 0; i < moves; i++) {
+            int move = move(depth, i);
+            int kept = Cube.keptSides(move, cube.getSize());
+            if ((uniform & kept) != kept) {
+                continue;
+            }
+
+            cube.copyTo(child);
+            child.twist(move);
+            if (child.isSolved()) {
+                found++;
+                if (Rubiks.PRINT_SOLUTION) {
+                    paths.add(pathTo(depth, move));
+                }
+                if (firstSolution) {
+                    break;
+                }
+            }
+        }
+        next[depth] = moves;
+        return found;
+    }
+
+    /**
+     * Returns if the heuristic says the cube cannot be solved within its
+     * bound.
+     *
+     * @param cube
+     *            the cube
+     * @return true if the cube can be skipped
+     */
+    private boolean pruned(Cube cube) {
+        return heuristic != null
+                && cube.getTwists() + heuristic.estimate(cube) > cube.getBound();
+    }
+
+    /**
+     * Looks up a cube in the table, and remembers its hash for store().
+     * Cubes close to the bound are not looked up, searching them is cheaper.
+     *
+     * @param cube
+     *            the cube
+     * @param depth
+     *            depth the cube is at
+     * @return true if found, its solutions are then added to the count of the
+     *         parent (or of depth 0 for the root)
+     */
+    private boolean lookup(Cube cube, int depth) {
+        int twistsLeft = cube.getBound() - cube.getTwists();
+        if (twistsLeft < MIN_TABLE_TWISTS) {
+            return false;
+        }
+
+        hashes[depth] = cube.hash();
+        long known = table.lookup(hashes[depth], twistsLeft);
+        if (known == TranspositionTable.MISS) {
+            return false;
+        }
+        counts[Math.max(0, depth - 1)] += known;
+        return true;
+    }
+
+    /**
+     * Stores the number of solutions of the cube at a depth in the table.
+     *
+     * @param cube
+     *            the cube
+     * @param depth
+     *            depth the cube is at
+     * @param count
+     *            number of solutions found
+     */
+    private void store(Cube cube, int depth, int count) {
+        int twistsLeft = cube.getBound() - cube.getTwists();
+        if (twistsLeft >= MIN_TABLE_TWISTS) {
+            table.store(hashes[depth], twistsLeft, count);
+        }
+    }
+
+    /**
+     * Makes sure the stack can hold the given number of frames.
+     *
+     * @param frames
+     *            number of frames needed
+     * @param size
+     *            size of the cubes searched
+     */
+    private void ensureCapacity(int frames, int size) {
+        if (cubes.length >= frames) {
+            return;
+        }
+
+        Cube[] newCubes = new Cube[frames];
+        System.arraycopy(cubes, 0, newCubes, 0, cubes.length);
+        for (int i = Math.max(1, cubes.length); i < frames; i++) {
+            newCubes[i] = new Cube(size);
+        }
+
+        cubes = newCubes;
+        next = new int[frames];
+        twisted = new int[frames];
+        counts = new int[frames];
+        hashes = new long[frames];
+        order = new int[frames][];
+    }
+
+    /**
+     * Returns the twist tried as the given number at the given depth.
+     *
+     * @param depth
+     *            depth of the frame
+     * @param index
+     *            index of the twist at that depth
+     * @return the number of the twist
+     */
+    private int move(int depth, int index) {
+        if (ordering) {
+            return order[depth][index];
+        }
+        return index;
+    }
+
+    /**
+     * Orders the twists of the cube at the given depth, most promising child
+     * first. Cubes close to the bound are not ordered: their subtrees are so
+     * small that ordering costs more than it saves.
+     *
+     * @param depth
+     *            depth of the frame to order
+     */
+    private void orderMoves(int depth) {
+        Cube cube = cubes[depth];
+        int moves = cube.getMoves();
+
+        if (order[depth] == null) {
+            order[depth] = new int[moves];
+        }
+        if (estimates == null) {
+            estimates = new int[moves];
+        }
+
+        int[] result = order[depth];
+        for (int i = 0; i < moves; i++) {
+            result[i] = i;
+        }
+
+        if (cube.getBound() - cube.getTwists() < 3) {
+            return;
+        }
+
+        // estimate each child, using the buffer of the next depth
+        Cube child = cubes[depth + 1];
+        for (int i = 0; i < moves; i++) {
+            cube.copyTo(child);
+            child.twist(i);
+            estimates[i] = child.misplaced();
+        }
+
+        // insertion sort, keeps the original order for equal estimates
+        for (int i = 1; i < moves; i++) {
+            int move = result[i];
+            int j = i - 1;
+            while (j >= 0 && estimates[result[j]] > estimates[move]) {
+                result[j + 1] = result[j];
+                j--;
+            }
+            result[j + 1] = move;
+        }
+    }
+
+}
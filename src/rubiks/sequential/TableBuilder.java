@@ -0,0 +1,380 @@
+package rubiks.sequential;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Builds a table with the number of twists needed to reach every state of a
+ * state space from a start state, with a breadth first search on several
+ * threads.
+ *
+ * The table stores a distance of 4 bits (a nibble) per state, 16 states per
+ * long, and nothing else: the frontier of a level is not kept in a queue but
+ * found again by scanning the table for the states at that distance. The
+ * memory needed is therefore half a byte per state, and the table can be
+ * written to and read from a file as it is.
+ *
+ * Each level is scanned by all threads at once, each taking ranges of states.
+ * States are marked with a compare-and-set on their long, so threads never
+ * wait for each other within a level.
+ *
+ */
+public class TableBuilder {
+
+    /**
+     * A state space: states numbered from 0, and twists between them.
+     */
+    public interface Space {
+
+        /**
+         * Returns the number of states.
+         *
+         * @return the number of states
+         */
+        long size();
+
+        /**
+         * Returns the number of twists of each state.
+         *
+         * @return the number of twists
+         */
+        int moves();
+
+        /**
+         * Returns the state a twist leads to.
+         *
+         * @param state
+         *            the state to twist
+         * @param move
+         *            number of the twist ( 0 <= move < moves() )
+         * @return the state after the twist
+         */
+        long twist(long state, int move);
+    }
+
+    // distance of states not reached yet, larger distances cannot be stored
+    public static final int UNREACHED = 15;
+
+    // bits per state, and states per long
+    private static final int BITS = 4;
+
+    private static final int PER_LONG = 64 / BITS;
+
+    // a nibble of 1 in each nibble of a long, and the high bit of each nibble
+    private static final long ONES = 0x1111111111111111L;
+
+    private static final long HIGHS = 0x8888888888888888L;
+
+    // states scanned by a thread at a time, a multiple of PER_LONG
+    private static final int RANGE = 1 << 16;
+
+    // minimum time between two progress reports, in milliseconds
+    private static final long REPORT_INTERVAL = 1000;
+
+    private final Space space;
+
+    private final int threads;
+
+    // where progress is reported, null for nowhere
+    private PrintStream progress;
+
+    /**
+     * Constructor.
+     *
+     * @param space
+     *            the states and twists to search
+     * @param threads
+     *            number of threads to build with
+     */
+    public TableBuilder(Space space, int threads) {
+        this.space = space;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Reports the number of states of each level, and the memory in use, while
+     * building. Levels finished within a second of the last report are
+     * reported together.
+     *
+     * @param progress
+     *            stream to report to, or null to not report
+     */
+    public void setProgress(PrintStream progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Returns the number of longs of a table.
+     *
+     * @param states
+     *            number of states
+     * @return the number of longs
+     */
+    public static int longs(long states) {
+        long result = (states + PER_LONG - 1) / PER_LONG;
+        if (result > Integer.MAX_VALUE) {
+            throw new Error("table too large: " + states + " states");
+        }
+        return (int) result;
+    }
+
+    /**
+     * Returns the memory used by a table.
+     *
+     * @param states
+     *            number of states
+     * @return the memory needed, in bytes
+     */
+    public static long memory(long states) {
+        return longs(states) * 8L;
+    }
+
+    /**
+     * Returns the distance of a state.
+     *
+     * @param table
+     *            the table
+     * @param state
+     *            the state
+     * @return the distance, UNREACHED if the state cannot be reached
+     */
+    public static int get(long[] table, long state) {
+        return (int) (table[(int) (state / PER_LONG)] >>> shift(state))
+                & UNREACHED;
+    }
+
+    /**
+     * Builds the table.
+     *
+     * @param start
+     *            state at distance 0
+     * @return the table, see get()
+     */
+    public long[] build(long start) throws InterruptedException,
+            ExecutionException {
+        long startTime = System.currentTimeMillis();
+        long lastReport = startTime;
+        long states = space.size();
+
+        final AtomicLongArray table = new AtomicLongArray(longs(states));
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, -1L);
+        }
+        table.set((int) (start / PER_LONG),
+                ~((long) UNREACHED << shift(start)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long reached = 1;
+        int level = 0;
+        try {
+            while (true) {
+                long added = expand(table, level, executor);
+                if (added == 0) {
+                    break;
+                }
+                level++;
+                reached += added;
+                if (level >= UNREACHED) {
+                    throw new Error("distances do not fit in the table: more"
+                            + " than " + (UNREACHED - 1) + " twists needed");
+                }
+
+                long now = System.currentTimeMillis();
+                if (progress != null && now - lastReport >= REPORT_INTERVAL) {
+                    report(level, added, reached, now - startTime);
+                    lastReport = now;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        if (progress != null) {
+            report(level, 0, reached, System.currentTimeMillis() - startTime);
+        }
+
+        long[] result = new long[table.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = table.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Writes a table to a file.
+     *
+     * @param table
+     *            the table
+     * @param file
+     *            the file to write
+     */
+    public static void write(long[] table, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(table.length);
+            for (long value : table) {
+                out.writeLong(value);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a table written by write().
+     *
+     * @param file
+     *            the file to read
+     * @param states
+     *            number of states the table should have
+     * @return the table
+     */
+    public static long[] read(File file, long states) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            int length = in.readInt();
+            if (length != longs(states)) {
+                throw new IOException("table in " + file + " has " + length
+                        + " longs instead of " + longs(states));
+            }
+            long[] result = new long[length];
+            for (int i = 0; i < length; i++) {
+                result[i] = in.readLong();
+            }
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Marks all unreached children of the states at a distance as one further
+     * away, on all threads.
+     *
+     * @return the number of states marked
+     */
+    private long expand(final AtomicLongArray table, final int level,
+            ExecutorService executor) throws InterruptedException,
+            ExecutionException {
+        final long states = space.size();
+        final AtomicLong next = new AtomicLong();
+
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<Long>() {
+                public Long call() {
+                    long added = 0;
+                    long from;
+                    while ((from = next.getAndAdd(RANGE)) < states) {
+                        added += expand(table, level, from,
+                                Math.min(states, from + RANGE));
+                    }
+                    return added;
+                }
+            }));
+        }
+
+        long added = 0;
+        for (Future<Long> result : results) {
+            added += result.get();
+        }
+        return added;
+    }
+
+    /**
+     * Marks the unreached children of the states at a distance within a range.
+     *
+     * @return the number of states marked
+     */
+    private long expand(AtomicLongArray table, int level, long from, long to) {
+        long added = 0;
+        int moves = space.moves();
+
+        for (long first = from; first < to; first += PER_LONG) {
+            long values = table.get((int) (first / PER_LONG));
+            // skip the 16 states at once if none of them is at the level: a
+            // nibble of the xor is 0 only for states at the level
+            long other = values ^ (level * ONES);
+            if (((other - ONES) & ~other & HIGHS) == 0) {
+                continue;
+            }
+            for (long state = first; state < Math.min(to, first + PER_LONG); state++) {
+                if (((values >>> shift(state)) & UNREACHED) != level) {
+                    continue;
+                }
+                for (int move = 0; move < moves; move++) {
+                    if (mark(table, space.twist(state, move), level + 1)) {
+                        added++;
+                    }
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Sets the distance of a state if it was not reached yet.
+     *
+     * @return true if set, false if the state was already reached
+     */
+    private static boolean mark(AtomicLongArray table, long state,
+            int distance) {
+        int index = (int) (state / PER_LONG);
+        int shift = shift(state);
+        while (true) {
+            long values = table.get(index);
+            if (((values >>> shift) & UNREACHED) != UNREACHED) {
+                return false;
+            }
+            long marked = values & ~((long) (UNREACHED ^ distance) << shift);
+            if (table.compareAndSet(index, values, marked)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the bits of a state in its long.
+     */
+    private static int shift(long state) {
+        return (int) (state % PER_LONG) * BITS;
+    }
+
+    /**
+     * Prints the progress of the build.
+     */
+    private void report(int level, long added, long reached, long time) {
+        Runtime runtime = Runtime.getRuntime();
+        long used = (runtime.totalMemory() - runtime.freeMemory())
+                / (1024 * 1024);
+        if (added > 0) {
+            progress.println("Table level " + level + ": " + added
+                    + " states, " + reached + " of " + space.size()
+                    + " reached after " + time + " milliseconds, " + used
+                    + " MB in use");
+        } else {
+            progress.println("Table complete: " + reached + " of "
+                    + space.size() + " states reached in " + level
+                    + " levels, " + (memory(space.size()) / 1024) + " KB");
+        }
+    }
+
+}